@@ -1,6 +1,7 @@
 package de.noahalbers.plca.backend;
 
 import java.math.BigInteger;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.Key;
@@ -12,10 +13,14 @@ import java.security.SecureRandom;
 import java.security.spec.RSAPublicKeySpec;
 import java.util.Base64;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -30,48 +35,65 @@ public class EncryptionManager {
 	private static final String JSON_RSA_MODULUS = "modulus",
 						 	    JSON_RSA_EXPONENT = "exponent";
 
-	// The logger
-	private Logger log = new Logger("EncryptionManager");
+	// Length of the authentication tag of aes-gcm (Bits)
+	private static final int GCM_TAG_LENGTH = 128;
 	
-	// RSA-Encryption system
-	private Cipher rsaCipher;
-	private KeyFactory rsaFactory;
+	// How many unused instances of an encryption/hash method are kept for reuse
+	private static final int MAX_POOLED = 64;
 	
-	// Aes-Encryption system
-	private Cipher aesCipher;
+	// Pools with reusable instances of all encryption/hash methods (Shared by all threads)
+	private static final InstancePool<Cipher>
+			AES_CIPHERS = new InstancePool<>(()->Cipher.getInstance("AES/CBC/PKCS5PADDING")),
+			GCM_CIPHERS = new InstancePool<>(()->Cipher.getInstance("AES/GCM/NoPadding")),
+			RSA_CIPHERS = new InstancePool<>(()->Cipher.getInstance("RSA"));
+	private static final InstancePool<KeyFactory> RSA_FACTORYS = new InstancePool<>(()->KeyFactory.getInstance("RSA"));
+	private static final InstancePool<MessageDigest>
+			SHA256_DIGESTS = new InstancePool<>(()->MessageDigest.getInstance("SHA-256")),
+			MD5_DIGESTS = new InstancePool<>(()->MessageDigest.getInstance("MD5"));
 	
-	// SHA-256 hash system
-	private MessageDigest digestSha256;
+	// Secure random number generator (Thread-safe and shared by all managers)
+	private static final SecureRandom RANDOM = new SecureRandom();
 	
-	// MD-5 hash system
-	private MessageDigest digestmd5;
+	// Manager that can be used by all threads without any initialisation
+	private static final EncryptionManager SHARED = new EncryptionManager();
 	
-	// Secure random number generator
-	private SecureRandom random = new SecureRandom();
+	// The logger
+	private Logger log = new Logger("EncryptionManager");
+	
+	/**
+	 * @return a manager that can be used by all threads. All managers share the same pooled instances of the encryption/hash methods.
+	 */
+	public static EncryptionManager getShared() {
+		return SHARED;
+	}
 	
 	/**
-	 * Creates the instances for all encryption/hash methodes.
+	 * Checks that all encryption/hash methodes are supported.
 	 * @return empty if everything went right; if any encryption/hash method is not supported, return the name
 	 */
 	public Optional<String> init(){
 		// Checks if aes-cbc with pkcs5 padding is supported
-		if((this.aesCipher = this.getExceptNull(()->Cipher.getInstance("AES/CBC/PKCS5PADDING"))) == null)
+		if(!AES_CIPHERS.isSupported())
 			return Optional.of("aes");
 
+		// Checks if aes-gcm is supported
+		if(!GCM_CIPHERS.isSupported())
+			return Optional.of("aes-gcm");
+
 		// Checks if rsa is supported
-		if((this.rsaCipher = this.getExceptNull(()->Cipher.getInstance("RSA"))) == null)
+		if(!RSA_CIPHERS.isSupported())
 			return Optional.of("rsa");
 
 		// Checks if rsa is supported
-		if((this.rsaFactory = this.getExceptNull(()->KeyFactory.getInstance("RSA"))) == null)
+		if(!RSA_FACTORYS.isSupported())
 			return Optional.of("rsa factory");
 
 		// Checks if sha256 is supported
-		if((this.digestSha256 = this.getExceptNull(()->MessageDigest.getInstance("SHA-256"))) == null)
+		if(!SHA256_DIGESTS.isSupported())
 			return Optional.of("sha256");
 		
 		// Checks if sha256 is supported
-		if((this.digestmd5 = this.getExceptNull(()->MessageDigest.getInstance("MD5"))) == null)
+		if(!MD5_DIGESTS.isSupported())
 			return Optional.of("md5");
 			
 		return Optional.empty();
@@ -119,6 +141,44 @@ public class EncryptionManager {
 		return this.useAES(data, key, iv, Cipher.DECRYPT_MODE);
 	}
 	
+	/**
+	 * Encrypts and authenticates the given blob of bytes using aes-gcm
+	 * @param data the data that shall be encrypted
+	 * @param key the key to use
+	 * @param nonce the nonce for the encryption (12 bytes). Must never be used twice with the same key
+	 * @param aad additional data that gets authenticated but not encrypted
+	 * @return empty if anything went wrong (error will be logged); otherwise the encrypted blob of data followed by the authentication tag
+	 */
+	public Optional<byte[]> encryptGCM(byte[] data, SecretKeySpec key, byte[] nonce, byte[] aad) {
+		return this.useGCM(data, 0, data.length, key, nonce, aad, Cipher.ENCRYPT_MODE);
+	}
+	
+	/**
+	 * Encrypts and authenticates a part of the given blob of bytes using aes-gcm
+	 * @param data the data that contains the part that shall be encrypted
+	 * @param offset the index of the first byte of the part
+	 * @param length how many bytes the part has
+	 * @param key the key to use
+	 * @param nonce the nonce for the encryption (12 bytes). Must never be used twice with the same key
+	 * @param aad additional data that gets authenticated but not encrypted
+	 * @return empty if anything went wrong (error will be logged); otherwise the encrypted part followed by the authentication tag
+	 */
+	public Optional<byte[]> encryptGCM(byte[] data, int offset, int length, SecretKeySpec key, byte[] nonce, byte[] aad) {
+		return this.useGCM(data, offset, length, key, nonce, aad, Cipher.ENCRYPT_MODE);
+	}
+	
+	/**
+	 * Decrypts the given blob of bytes using aes-gcm and verifies its authentication tag
+	 * @param data the encrypted data followed by the authentication tag
+	 * @param key the key to use
+	 * @param nonce the nonce that got used for the encryption (12 bytes)
+	 * @param aad additional data that got authenticated with the data
+	 * @return empty if anything went wrong or the data has been tampered with (error will be logged); otherwise the decrypted blob of data
+	 */
+	public Optional<byte[]> decryptGCM(byte[] data, SecretKeySpec key, byte[] nonce, byte[] aad) {
+		return this.useGCM(data, 0, data.length, key, nonce, aad, Cipher.DECRYPT_MODE);
+	}
+	
 	/**
 	 * Generates a random initialization vector for the aes-encryption (128 bit)
 	 * @return
@@ -127,7 +187,7 @@ public class EncryptionManager {
 		// Vector with all 128 bits
 		byte[] vector = new byte[16];
 		// Generates the init vector
-		this.random.nextBytes(vector);
+		RANDOM.nextBytes(vector);
 		// Returns the generated parameter spec
 		return new IvParameterSpec(vector);
 	}
@@ -141,7 +201,7 @@ public class EncryptionManager {
 		// Key with all 256 bits
 		byte[] key = new byte[32];
 		// Generates the random key
-		this.random.nextBytes(key);
+		RANDOM.nextBytes(key);
 		
 		// Generates the secret key
 		return new SecretKeySpec(key, "AES");
@@ -153,8 +213,12 @@ public class EncryptionManager {
 	 * @return an hashed array with the md5 hash
 	 */
 	public byte[] hashMD5(byte[] data) {
-		this.digestmd5.update(data);
-		return this.digestmd5.digest();
+		MessageDigest digest = MD5_DIGESTS.borrow();
+		try {
+			return digest.digest(data);
+		} finally {
+			MD5_DIGESTS.release(digest);
+		}
 	}
 	
 	/**
@@ -163,8 +227,12 @@ public class EncryptionManager {
 	 * @return an hashed array with the sha256 hash
 	 */
 	public byte[] hashSHA256(byte[] data) {
-		this.digestSha256.update(data);
-		return this.digestSha256.digest();
+		MessageDigest digest = SHA256_DIGESTS.borrow();
+		try {
+			return digest.digest(data);
+		} finally {
+			SHA256_DIGESTS.release(digest);
+		}
 	}
 	
 	/**
@@ -205,11 +273,16 @@ public class EncryptionManager {
 	 * @throws RSAException
 	 */
 	public PublicKey getPublicKeyFromSpec(RSAPublicKeySpec spec) throws RSAException {
+		KeyFactory factory = null;
 		try {
 			// Tries to get the key from the result
-			return this.rsaFactory.generatePublic(spec);
+			factory = RSA_FACTORYS.borrow();
+			return factory.generatePublic(spec);
 		}catch(Exception e) {
 			throw new RSAException(e);
+		} finally {
+			if(factory != null)
+				RSA_FACTORYS.release(factory);
 		}
 	}
 	
@@ -242,12 +315,40 @@ public class EncryptionManager {
 	 * @return empty if anything went wrong (error will be logged); otherwise the modified blob of data
 	 */
 	private Optional<byte[]> useAES(byte[] data, SecretKeySpec key, IvParameterSpec iv, int mode){
+		Cipher cipher = AES_CIPHERS.borrow();
 		try {
-			this.aesCipher.init(mode, key, iv);
-			return Optional.of(this.aesCipher.doFinal(data));
+			cipher.init(mode, key, iv);
+			return Optional.of(cipher.doFinal(data));
 		} catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
 			this.log.error("Failed to use aes").critical(e);
 			return Optional.empty();
+		} finally {
+			AES_CIPHERS.release(cipher);
+		}
+	}
+
+	/**
+	 * Wrapper to use aes-gcm for en- and decryption
+	 * @param data the data that contains the part that shall be used
+	 * @param offset the index of the first byte of the part
+	 * @param length how many bytes the part has
+	 * @param key key for the algorithm
+	 * @param nonce the nonce for aes-gcm
+	 * @param aad additional data that gets authenticated
+	 * @param mode the mode that shall be used; eigther Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+	 * @return empty if anything went wrong (error will be logged); otherwise the modified blob of data
+	 */
+	private Optional<byte[]> useGCM(byte[] data, int offset, int length, SecretKeySpec key, byte[] nonce, byte[] aad, int mode){
+		Cipher cipher = GCM_CIPHERS.borrow();
+		try {
+			cipher.init(mode, key, new GCMParameterSpec(GCM_TAG_LENGTH, nonce));
+			cipher.updateAAD(aad);
+			return Optional.of(cipher.doFinal(data, offset, length));
+		} catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
+			this.log.debug("Failed to use aes-gcm").critical(e);
+			return Optional.empty();
+		} finally {
+			GCM_CIPHERS.release(cipher);
 		}
 	}
 
@@ -259,30 +360,86 @@ public class EncryptionManager {
 	 * @return empty if anything went wrong (error will be logged); otherwise the modified blob of data
 	 */
 	private Optional<byte[]> useRSA(byte[] data, Key key, int mode){
+		Cipher cipher = RSA_CIPHERS.borrow();
 		try {
-			this.rsaCipher.init(mode, key);
-			return Optional.of(this.rsaCipher.doFinal(data));
+			cipher.init(mode, key);
+			return Optional.of(cipher.doFinal(data));
 		} catch (InvalidKeyException | IllegalBlockSizeException | BadPaddingException e) {
 			this.log.debug("Failed to use RSA").critical(e);
 			return Optional.empty();
+		} finally {
+			RSA_CIPHERS.release(cipher);
 		}
 	}
 	
 	/**
-	 * Tries to get the value from the getter and return it; if an exception occures, return null
-	 * @param getter
-	 * @return
+	 * Thread-safe pool of reusable instances of an encryption/hash method.
+	 * 
+	 * A pool is used instead of thread-local instances as virtual threads (One per connection) would never reuse them.
 	 */
-	private <T> T getExceptNull(UnsafeProvider<T> getter){
-		try {
-			return getter.get();
-		} catch (Exception e) {
-			return null;
+	private static class InstancePool<T> {
+		
+		// Unused instances
+		private Queue<T> unused = new ConcurrentLinkedQueue<>();
+		
+		// Amount of unused instances
+		private AtomicInteger amount = new AtomicInteger();
+		
+		// Creates new instances
+		private UnsafeProvider<T> factory;
+		
+		public InstancePool(UnsafeProvider<T> factory) {
+			this.factory = factory;
+		}
+		
+		/**
+		 * @return if an instance can be created (Keeps the instance for reuse)
+		 */
+		public boolean isSupported() {
+			try {
+				this.release(this.borrow());
+				return true;
+			}catch(IllegalStateException e) {
+				return false;
+			}
+		}
+		
+		/**
+		 * Takes an unused instance or creates a new one. Has to be released once it is no longer used.
+		 * @throws IllegalStateException if the method is not supported (Checked by {@link EncryptionManager#init()})
+		 */
+		public T borrow() throws IllegalStateException {
+			// Takes an unused instance
+			T instance = this.unused.poll();
+			if(instance != null) {
+				this.amount.decrementAndGet();
+				return instance;
+			}
+			
+			// Creates a new instance
+			try {
+				return this.factory.get();
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		
+		/**
+		 * Returns the instance for reuse
+		 */
+		public void release(T instance) {
+			// Checks if enough instances are kept
+			if(this.amount.incrementAndGet() > MAX_POOLED) {
+				this.amount.decrementAndGet();
+				return;
+			}
+			
+			this.unused.add(instance);
 		}
 	}
 	
 	@FunctionalInterface
 	public interface UnsafeProvider<T>{
-		public T get() throws Exception;
+		public T get() throws GeneralSecurityException;
 	}
 }
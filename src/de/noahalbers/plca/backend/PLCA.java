@@ -3,16 +3,19 @@ package de.noahalbers.plca.backend;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.security.spec.RSAPublicKeySpec;
+import java.sql.SQLException;
 import java.util.Optional;
 import java.util.TimeZone;
 
 import de.noahalbers.plca.backend.background.BackgroundTask;
 import de.noahalbers.plca.backend.config.Config;
 import de.noahalbers.plca.backend.config.ConfigLoadException;
+import de.noahalbers.plca.backend.config.loaders.BooleanValue;
 import de.noahalbers.plca.backend.config.loaders.IntegerValue;
 import de.noahalbers.plca.backend.config.loaders.LongValue;
 import de.noahalbers.plca.backend.config.loaders.RSAPublicKeyValue;
 import de.noahalbers.plca.backend.config.loaders.StringValue;
+import de.noahalbers.plca.backend.database.ContactTracer;
 import de.noahalbers.plca.backend.database.PLCADatabase;
 import de.noahalbers.plca.backend.email.EmailService;
 import de.noahalbers.plca.backend.logger.Logger;
@@ -43,8 +46,33 @@ public class PLCA {
 			.register("db_password", new StringValue(""),"Password that shall be used to access the database")
 			.register("db_databasename", new StringValue("test"),"The name of the database")
 			.register("connection_timeout", new LongValue(5000l),"How long to wait until a connection gets closed. Time in ms")
+			.register("session_idle_timeout", new LongValue(30000l),"How long a session (Multiple requests on the same connection) waits for the next request until it gets closed. Time in ms. 0 disables sessions")
+			.register("session_ticket_lifetime", new LongValue(1000l * 60 * 60),"How long a session ticket can be used to resume a connection without the rsa-handshake. Time in ms. 0 disables session tickets")
+			.register("session_ticket_cache_size", new IntegerValue(1024),"How many session tickets are stored until the least recently used ones get removed")
+			.register("protocol_min_version", new IntegerValue(1),"The oldest protocol version that clients can use. 1 uses aes-cbc, 2 uses aes-gcm with per-message counters, 3 adds large frames and chunked packets")
+			.register("protocol_chunk_size", new IntegerValue(16 * 1024),"How many bytes of a response get send per chunk. Only used with protocol version 3")
+			.register("max_packet_size", new IntegerValue(1024 * 1024),"How many bytes a packet that gets send by a client can have. Only used with protocol version 3 (The 'nio' server mode also stops receiving from a client once this many bytes are waiting to be processed)")
 			.register("applogin_pubK", new RSAPublicKeyValue(new RSAPublicKeySpec(new BigInteger("0"),new BigInteger("0"))),"The rsa-public-key in json-format that is used by the login-application. Is required to authenticate the login-app")
 			.register("port", new IntegerValue(1337),"On which port the server that is waiting for connections is running")
+			.register("server_mode", new StringValue(PLCAServer.MODE_THREAD),"How the server handles connections. 'thread' starts a thread for every connection, 'virtual' starts a virtual thread for every connection (Requires java 21+), 'nio' uses a few selector threads and passes the requests to a bounded worker pool")
+			.register("nio_selector_threads", new IntegerValue(2),"How many selector threads handle the connections. Only used in the 'nio' server mode")
+			.register("nio_worker_threads", new IntegerValue(16),"How many worker threads execute the handshakes and requests. Only used in the 'nio' server mode")
+			.register("nio_worker_queue", new IntegerValue(256),"How many handshakes and requests can wait for a free worker until new ones get rejected. Only used in the 'nio' server mode")
+			.register("db_migrate_schema", new BooleanValue(true),"If the tables and indexes of the database shall be created and upgraded at startup")
+			.register("db_cache_statements", new BooleanValue(true),"If the database driver shall cache the prepared statements of each connection")
+			.register("db_server_statements", new BooleanValue(true),"If the prepared statements shall be parsed once by the database server instead of being send as plain queries")
+			.register("db_statement_cache_size", new IntegerValue(64),"How many prepared statements are cached per database connection")
+			.register("db_write_behind", new BooleanValue(false),"If the logins and logouts of concurrent requests shall be collected and written together as one batch")
+			.register("db_write_behind_delay", new LongValue(5l),"How long to wait for more logins and logouts once the first one of a batch got received. Time in ms")
+			.register("db_write_behind_batch", new IntegerValue(100),"How many logins and logouts are written at most with one batch")
+			.register("db_write_behind_timeout", new LongValue(30000l),"How long a login or logout waits for its batch to be written until the request fails. Time in ms")
+			.register("db_pool_min", new IntegerValue(2),"How many idle database connections are kept open")
+			.register("db_pool_max", new IntegerValue(20),"How many database connections can be open at the same time")
+			.register("db_pool_idle_timeout", new LongValue(1000l * 60 * 5),"How long a database connection can be unused until it gets closed (If more than db_pool_min are open). Time in ms")
+			.register("db_pool_acquire_timeout", new LongValue(5000l),"How long to wait for a free database connection until the request fails. Time in ms")
+			.register("db_pool_validation_query", new StringValue("SELECT 1"),"The query that checks if an idle database connection is still usable")
+			.register("db_pool_leak_threshold", new LongValue(30000l),"How long a database connection can be borrowed until it gets logged as a possible leak. Time in ms. 0 disables the leak detection")
+			.register("db_pool_statistics_delay", new LongValue(1000l * 60 * 10),"How long to wait between logging the statistics of the database connection pool. Time in ms")
 			.register("backup_delay", new LongValue(1000 * 60l),"How long to wait between backups. Time in ms")
 			.register("email_host", new StringValue(""),"Domain/Ip of the remote email server")
 			.register("email_mail", new StringValue(""),"Email-address that is used to send the backup-mail")
@@ -55,6 +83,17 @@ public class PLCA {
 			.register("backup_email_encryption_key", new StringValue(""),"The raw aes-key that shall be used to encrypt the backup file before sending it")
 			.register("backup_autologout", new LongValue(1000l*60*60),"How long to wait between the auto-logout processes. Time in ms")
 			.register("autodelete_time", new LongValue(1000*60*60*24*7*4l),"How long a user needs to be inactive until his account can be deleted. Time in ms")
+			.register("autodelete_chunk_size", new IntegerValue(200),"How many old accounts are deleted at once by the autodelete")
+			.register("autodelete_chunk_pause", new LongValue(50l),"How long the autodelete pauses between two chunks to let logins access the database. Time in ms")
+			.register("user_sync_lag", new LongValue(5000l),"How long a change of the user list has to be ago until the incremental user sync counts it as received. Newer changes are send again with the next sync so that no change of a slow transaction is missed. Time in ms")
+			.register("user_sync_retention", new LongValue(1000l * 60 * 60 * 24 * 30),"How long the deletion of a user is kept in the change log of the incremental user sync. Clients that have not synced for longer have to replace their whole list. Time in ms")
+			.register("contact_tracing_mode", new StringValue(ContactTracer.MODE_SQL),"How the contacts of an infected user are searched. 'sql' lets the database join the timespents, 'memory' loads the timespents of the relevant time window once and searches the overlaps with an interval tree, 'copresence' writes the overlaps of every timespent into a table when it gets closed and looks them up (Requires a restart)")
+			.register("copresence_max_margin", new IntegerValue(60),"The highest margin (Minutes) that the co-presence pairs get written with. Contact tracing with a bigger margin falls back to the in-memory search. Changing it only affects timespents that get closed afterwards")
+			.register("copresence_batch", new IntegerValue(100),"How many closed timespents the co-presence writer processes with one connection")
+			.register("copresence_interval", new LongValue(60_000l),"How many millis the co-presence writer waits for a closed timespent until it checks the table anyway (Catches timespents that got closed by another backend)")
+			.register("contact_tracing_max_depth", new IntegerValue(3),"How many hops (Contacts of contacts) a multi-hop contact tracing can search at most")
+			.register("contact_tracing_max_batch", new IntegerValue(100),"How many infected users can be traced at most with one batch contact tracing")
+			.register("contact_tracing_parallelism", new IntegerValue(Runtime.getRuntime().availableProcessors()),"How many threads expand the levels of a multi-hop contact tracing in parallel")
 			.register("autologout_after_time", new IntegerValue(24),"How long a user has to be logged in to get logged out automatically.")
 			.register("admin_auth_expire", new LongValue(1000l * 60 * 60 * 24),"How many millis it takes until a generated auth code expires.")
 			.register("admin_auth_email_subject", new StringValue("PL-Admin-interface Authcode"),"The Email-subject that will be send when sending a auth code to an email.")
@@ -104,6 +143,32 @@ public class PLCA {
 			return;
 		}
 		
+		this.log.info("Starting database connection pool");
+		
+		// Starts the pool for the database connections
+		this.database.startPool();
+		
+		// Checks if the schema shall be migrated
+		if(this.config.<Boolean>getUnsafe("db_migrate_schema")) {
+			this.log.info("Migrating database schema");
+			
+			try {
+				// Creates or upgrades the tables
+				this.database.migrateSchema();
+			} catch (SQLException e) {
+				this.log
+				.error("Failed to migrate the database schema")
+				.error(e);
+				this.shutdown();
+				return;
+			}
+		}
+		
+		this.log.info("Starting database writers");
+		
+		// Starts the writers (Once the tables and the procedure exist)
+		this.database.startWriters();
+		
 		this.log.info("Starting email service");
 		
 		// Starts the email manager
@@ -3,6 +3,7 @@ package de.noahalbers.plca.backend.background;
 import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.Map.Entry;
 import java.util.Optional;
 
 import javax.crypto.spec.IvParameterSpec;
@@ -11,6 +12,7 @@ import javax.crypto.spec.SecretKeySpec;
 import de.noahalbers.plca.backend.EncryptionManager;
 import de.noahalbers.plca.backend.PLCA;
 import de.noahalbers.plca.backend.config.Config;
+import de.noahalbers.plca.backend.database.ConnectionPool;
 import de.noahalbers.plca.backend.database.PLCADatabase;
 import de.noahalbers.plca.backend.logger.Logger;
 import de.noahalbers.plca.backend.util.PresetTimer;
@@ -33,6 +35,9 @@ public class BackgroundTask extends Thread {
 	private PresetTimer backupTimer = new PresetTimer(this.plca.getConfig().getUnsafe("backup_delay"));
 	private PresetTimer autologoutTimer = new PresetTimer(this.plca.getConfig().getUnsafe("backup_autologout"));
 	
+	// Timer for logging the statistics of the database connection pool
+	private PresetTimer poolStatisticsTimer = new PresetTimer(this.plca.getConfig().getUnsafe("db_pool_statistics_delay"));
+	
 	// Encryption manager to encrypt the email backup
 	private EncryptionManager encryptionManager = new EncryptionManager();
 
@@ -69,6 +74,8 @@ public class BackgroundTask extends Thread {
 				Thread.sleep(1000);
 			} catch (InterruptedException e) {}
 			
+			// Closes unused and opens missing database connections
+			this.handlePoolMaintenance();
 			
 			// Checks if the autologout should be executed
 			if(this.autologoutTimer.hasReached()) {
@@ -99,10 +106,17 @@ public class BackgroundTask extends Thread {
 			try(Connection con = this.database.startConnection())
 			{
 				// Deletes old accounts
-				this.database.doAutoDeleteAccounts(con);
+				Entry<Integer, Integer> purged = this.database.doAutoDeleteAccounts(con);
+				
+				this.log.info("Removed "+purged.getKey()+" old accounts with "+purged.getValue()+" timespents");
+				
+				// Removes superseded and expired changes of the user sync
+				int compacted = this.database.compactUserChangelog(con);
+				
+				this.log.debug("Removed "+compacted+" superseded or expired user changes");
 			}
 			
-			this.log.debug("Removed old accounts, requesting database backup");
+			this.log.debug("Requesting database backup");
 			
 			// Gets the backup from the database
 			byte[] backup = this.database.requestDatabaseBackup().getBytes(StandardCharsets.UTF_8);
@@ -129,6 +143,22 @@ public class BackgroundTask extends Thread {
 		}
 	}
 	
+	/**
+	 * Maintains the database connection pool and logs its statistics
+	 */
+	private void handlePoolMaintenance() {
+		// Gets the pool
+		ConnectionPool pool = this.database.getPool();
+		if(pool == null)
+			return;
+		
+		pool.maintain();
+		
+		// Checks if the statistics should be logged
+		if(this.poolStatisticsTimer.hasReachedIfReset())
+			this.log.info("Database pool: "+pool);
+	}
+	
 	/**
 	 * Executes when an autologout for old logins should be executed
 	 */
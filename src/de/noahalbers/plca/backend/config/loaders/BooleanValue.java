@@ -0,0 +1,24 @@
+package de.noahalbers.plca.backend.config.loaders;
+
+public class BooleanValue extends BaseValue<Boolean>{
+
+	public BooleanValue(Boolean defaultValue) {
+		super(defaultValue);
+	}
+
+	@Override
+	public boolean loadObject(String value) {
+		// Checks if the value is a valid boolean
+		if(value.equalsIgnoreCase("true") || value.equalsIgnoreCase("false")) {
+			this.value = Boolean.valueOf(value);
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public String saveValue() {
+		return this.value.toString();
+	}
+
+}
@@ -0,0 +1,396 @@
+package de.noahalbers.plca.backend.database;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.noahalbers.plca.backend.logger.Logger;
+
+public class ConnectionPool {
+
+	// How many millis a connection has to be idle until it gets validated before
+	// it is borrowed again
+	private static final long VALIDATE_AFTER_IDLE = 5000;
+
+	// How many seconds the validation query can take
+	private static final int VALIDATION_TIMEOUT = 5;
+
+	// Logger
+	private Logger log = new Logger("ConnectionPool");
+
+	// Opens new physical connections
+	private ConnectionFactory factory;
+
+	// Unused physical connections (Most recently used first)
+	private BlockingDeque<IdleConnection> idle = new LinkedBlockingDeque<>();
+
+	// Permits for all connections that can be borrowed (Limits the pool size)
+	private Semaphore permits;
+
+	// All connections that are currently borrowed (Used to detect leaks)
+	private Set<Borrow> borrows = ConcurrentHashMap.newKeySet();
+
+	// Settings
+	private int minSize, maxSize;
+	private long idleTimeout, acquireTimeout, leakThreshold;
+	private String validationQuery;
+
+	// Statistics
+	private AtomicInteger borrowed = new AtomicInteger();
+	private AtomicLong totalOpened = new AtomicLong(), totalClosed = new AtomicLong(),
+			totalBorrows = new AtomicLong(), totalTimeouts = new AtomicLong(), totalWaitMillis = new AtomicLong();
+
+	/**
+	 * @param factory
+	 *            opens new physical connections
+	 * @param minSize
+	 *            how many idle connections are kept open
+	 * @param maxSize
+	 *            how many connections can be open at the same time
+	 * @param idleTimeout
+	 *            how many millis a connection can be idle until it gets closed
+	 *            (If more than the min size are open)
+	 * @param acquireTimeout
+	 *            how many millis to wait for a free connection
+	 * @param validationQuery
+	 *            the query that checks if an idle connection is still usable
+	 * @param leakThreshold
+	 *            how many millis a connection can be borrowed until it gets logged
+	 *            as a possible leak (0 disables the leak detection)
+	 */
+	public ConnectionPool(ConnectionFactory factory, int minSize, int maxSize, long idleTimeout, long acquireTimeout,
+			String validationQuery, long leakThreshold) {
+		this.factory = factory;
+		this.maxSize = Math.max(1, maxSize);
+		this.minSize = Math.max(0, Math.min(minSize, this.maxSize));
+		this.idleTimeout = idleTimeout;
+		this.acquireTimeout = acquireTimeout;
+		this.validationQuery = validationQuery;
+		this.leakThreshold = leakThreshold;
+		this.permits = new Semaphore(this.maxSize, true);
+	}
+
+	/**
+	 * Borrows a connection from the pool. Closing the connection returns it to the
+	 * pool.
+	 *
+	 * @return the borrowed connection
+	 * @throws SQLException
+	 *             if no connection got free in time or a new connection could not
+	 *             be opened
+	 */
+	public Connection borrow() throws SQLException {
+		long start = System.currentTimeMillis();
+
+		try {
+			// Waits for a free connection
+			if (!this.permits.tryAcquire(this.acquireTimeout, TimeUnit.MILLISECONDS)) {
+				this.totalTimeouts.incrementAndGet();
+				throw new SQLException("Timed out while waiting for a free database connection (" + this.toString() + ")");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a free database connection");
+		}
+
+		try {
+			// Gets a usable physical connection
+			Connection physical = this.takeIdleOrOpen();
+
+			// Updates the statistics
+			this.borrowed.incrementAndGet();
+			this.totalBorrows.incrementAndGet();
+			this.totalWaitMillis.addAndGet(System.currentTimeMillis() - start);
+
+			return this.wrap(physical);
+		} catch (SQLException | RuntimeException e) {
+			this.permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Takes the most recently used idle connection (Validated if it was idle for a
+	 * while) or opens a new one
+	 *
+	 * @throws SQLException
+	 *             if a new connection could not be opened
+	 */
+	private Connection takeIdleOrOpen() throws SQLException {
+		IdleConnection con;
+		while ((con = this.idle.pollFirst()) != null) {
+			// Checks if the connection is still usable
+			if (System.currentTimeMillis() - con.since < VALIDATE_AFTER_IDLE || this.isValid(con.connection))
+				return con.connection;
+
+			this.log.debug("Discarding broken idle connection");
+			this.closePhysical(con.connection);
+		}
+
+		return this.open();
+	}
+
+	/**
+	 * Returns the physical connection of a borrowed connection to the pool
+	 */
+	private void release(Connection physical) {
+		this.borrowed.decrementAndGet();
+
+		try {
+			// Checks if the connection broke
+			if (physical.isClosed()) {
+				this.totalClosed.incrementAndGet();
+				return;
+			}
+
+			// Resets open transactions
+			if (!physical.getAutoCommit()) {
+				physical.rollback();
+				physical.setAutoCommit(true);
+			}
+
+			this.idle.offerFirst(new IdleConnection(physical));
+		} catch (SQLException e) {
+			this.log.debug("Failed to reset returned connection, closing it").critical(e);
+			this.closePhysical(physical);
+		} finally {
+			this.permits.release();
+		}
+	}
+
+	/**
+	 * Closes connections that have been idle for too long (Keeps the min size),
+	 * opens new connections until the min size is reached and logs connections
+	 * that have been borrowed for too long. Should be executed periodically.
+	 */
+	public void maintain() {
+		// Logs possible leaks
+		if (this.leakThreshold > 0)
+			for (Borrow b : this.borrows)
+				if (!b.reported && System.currentTimeMillis() - b.since >= this.leakThreshold) {
+					b.reported = true;
+					this.log.warn("Connection has been borrowed for more than " + this.leakThreshold
+							+ "ms (Possible leak), borrowed by " + b.thread).critical(b.origin);
+				}
+
+		// Gets the oldest idle connections
+		Iterator<IdleConnection> it = this.idle.descendingIterator();
+		while (it.hasNext() && this.idle.size() > this.minSize) {
+			IdleConnection con = it.next();
+
+			// Checks if the connection has been idle for too long
+			if (System.currentTimeMillis() - con.since < this.idleTimeout)
+				break;
+
+			// Closes the connection if no borrower took it in the meantime
+			if (this.idle.removeLastOccurrence(con))
+				this.closePhysical(con.connection);
+		}
+
+		// Opens connections until the min size is reached
+		while (this.idle.size() + this.borrowed.get() < this.minSize) {
+			try {
+				this.idle.offerLast(new IdleConnection(this.open()));
+			} catch (SQLException e) {
+				this.log.warn("Failed to open idle database connection").critical(e);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Closes all idle connections. Borrowed connections get closed once they are
+	 * returned.
+	 */
+	public void close() {
+		this.minSize = 0;
+		this.idleTimeout = 0;
+		IdleConnection con;
+		while ((con = this.idle.pollFirst()) != null)
+			this.closePhysical(con.connection);
+	}
+
+	/**
+	 * Opens a new physical connection
+	 */
+	private Connection open() throws SQLException {
+		Connection con = this.factory.open();
+		this.totalOpened.incrementAndGet();
+		return con;
+	}
+
+	/**
+	 * Closes a physical connection
+	 */
+	private void closePhysical(Connection con) {
+		this.totalClosed.incrementAndGet();
+		try {
+			con.close();
+		} catch (SQLException e) {
+		}
+	}
+
+	/**
+	 * Checks if the connection is still usable by executing the validation query
+	 */
+	private boolean isValid(Connection con) {
+		try (Statement st = con.createStatement()) {
+			st.setQueryTimeout(VALIDATION_TIMEOUT);
+			st.execute(this.validationQuery);
+			return true;
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Wraps the physical connection to return it to the pool once it gets closed
+	 */
+	private Connection wrap(Connection physical) {
+		// If the connection got returned
+		AtomicBoolean returned = new AtomicBoolean();
+
+		// Remembers the borrow to detect leaks
+		Borrow borrow = new Borrow(this.leakThreshold > 0);
+		this.borrows.add(borrow);
+
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+					case "close":
+						// Returns the connection only once
+						if (returned.compareAndSet(false, true)) {
+							this.borrows.remove(borrow);
+							this.release(physical);
+						}
+						return null;
+					case "isClosed":
+						return returned.get() || physical.isClosed();
+					// Object methods are answered by the proxy's identity (Also after the connection got returned)
+					case "equals":
+						return proxy == args[0];
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					case "toString":
+						return "PooledConnection@" + Integer.toHexString(System.identityHashCode(proxy))
+								+ (returned.get() ? " (Returned)" : "");
+					}
+
+					// Checks if the connection has already been returned
+					if (returned.get())
+						throw new SQLException("Connection has already been returned to the pool");
+
+					try {
+						return method.invoke(physical, args);
+					} catch (InvocationTargetException e) {
+						throw e.getCause();
+					}
+				});
+	}
+
+	/**
+	 * @return how many connections are currently borrowed
+	 */
+	public int getBorrowedCount() {
+		return this.borrowed.get();
+	}
+
+	/**
+	 * @return how many open connections are currently unused
+	 */
+	public int getIdleCount() {
+		return this.idle.size();
+	}
+
+	/**
+	 * @return how many physical connections have been opened
+	 */
+	public long getTotalOpened() {
+		return this.totalOpened.get();
+	}
+
+	/**
+	 * @return how many physical connections have been closed
+	 */
+	public long getTotalClosed() {
+		return this.totalClosed.get();
+	}
+
+	/**
+	 * @return how many connections have been borrowed
+	 */
+	public long getTotalBorrows() {
+		return this.totalBorrows.get();
+	}
+
+	/**
+	 * @return how many borrows timed out while waiting for a free connection
+	 */
+	public long getTotalTimeouts() {
+		return this.totalTimeouts.get();
+	}
+
+	/**
+	 * @return the average time in millis that a borrow had to wait
+	 */
+	public double getAverageWaitMillis() {
+		long borrows = this.totalBorrows.get();
+		return borrows == 0 ? 0 : (double) this.totalWaitMillis.get() / borrows;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("borrowed=%d idle=%d max=%d opened=%d closed=%d borrows=%d timeouts=%d avgWait=%.2fms",
+				this.getBorrowedCount(), this.getIdleCount(), this.maxSize, this.getTotalOpened(), this.getTotalClosed(),
+				this.getTotalBorrows(), this.getTotalTimeouts(), this.getAverageWaitMillis());
+	}
+
+	@FunctionalInterface
+	public interface ConnectionFactory {
+		public Connection open() throws SQLException;
+	}
+
+	private static class Borrow {
+
+		// Time at which the connection got borrowed (Millis)
+		public final long since = System.currentTimeMillis();
+
+		// Name of the thread that borrowed the connection
+		public final String thread = Thread.currentThread().getName();
+
+		// Stacktrace of the borrow (Only captured if the leak detection is enabled)
+		public final Throwable origin;
+
+		// If the borrow has already been logged as a possible leak
+		public volatile boolean reported;
+
+		public Borrow(boolean captureOrigin) {
+			this.origin = captureOrigin ? new Throwable("Connection borrowed here") : null;
+		}
+	}
+
+	private static class IdleConnection {
+
+		// The physical connection
+		public final Connection connection;
+
+		// Time since the connection is unused (Millis)
+		public final long since = System.currentTimeMillis();
+
+		public IdleConnection(Connection connection) {
+			this.connection = connection;
+		}
+	}
+}
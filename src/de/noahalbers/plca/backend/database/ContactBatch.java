@@ -0,0 +1,22 @@
+package de.noahalbers.plca.backend.database;
+
+import java.util.List;
+import java.util.Map;
+
+import de.noahalbers.plca.backend.database.entitys.ContactInfoEntity;
+import de.noahalbers.plca.backend.database.entitys.UserEntity;
+
+public class ContactBatch {
+
+	// The contacts with their contact-infos by the id of the infected user
+	public final Map<Integer, Map<UserEntity, List<ContactInfoEntity>>> contacts;
+
+	// All contacts of the infected users (Every contact once, with the earliest
+	// exposure and the ids of the infected users that he had contact with)
+	public final List<ContactHop> exposures;
+
+	public ContactBatch(Map<Integer, Map<UserEntity, List<ContactInfoEntity>>> contacts, List<ContactHop> exposures) {
+		this.contacts = contacts;
+		this.exposures = exposures;
+	}
+}
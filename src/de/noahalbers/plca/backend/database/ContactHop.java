@@ -0,0 +1,29 @@
+package de.noahalbers.plca.backend.database;
+
+import java.sql.Timestamp;
+import java.util.List;
+
+import de.noahalbers.plca.backend.database.entitys.UserEntity;
+
+public class ContactHop {
+
+	// The contact
+	public final UserEntity user;
+
+	// How many contacts are between the infected user and the contact (1 for direct contacts)
+	public final int hop;
+
+	// Earliest time at which the contact could have been exposed
+	public final Timestamp exposure;
+
+	// Ids of the users that passed on an exposure to the contact (Contacts of a
+	// previous hop; the infected user for direct contacts)
+	public final List<Integer> via;
+
+	public ContactHop(UserEntity user, int hop, Timestamp exposure, List<Integer> via) {
+		this.user = user;
+		this.hop = hop;
+		this.exposure = exposure;
+		this.via = via;
+	}
+}
@@ -0,0 +1,564 @@
+package de.noahalbers.plca.backend.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Collectors;
+
+import de.noahalbers.plca.backend.PLCA;
+import de.noahalbers.plca.backend.database.entitys.ContactInfoEntity;
+import de.noahalbers.plca.backend.database.entitys.UserEntity;
+import de.noahalbers.plca.backend.database.exceptions.EntityLoadException;
+import de.noahalbers.plca.backend.util.IntervalTree;
+import de.noahalbers.plca.backend.util.Nullable;
+
+/**
+ * Contact tracing engine that loads the timespents of the relevant time window
+ * once and searches the overlaps in memory using an interval tree, instead of
+ * letting the database join the timespents with themselves.
+ */
+public class ContactTracer {
+
+	// All modes that the contact tracing can run in
+	public static final String
+			MODE_SQL = "sql",			// The database joins the timespents
+			MODE_MEMORY = "memory",		// The timespent window gets loaded and searched with an interval tree
+			MODE_COPRESENCE = "copresence";	// The pairs get written when timespents are closed and looked up
+
+	// How many users are loaded with one query
+	private static final int USER_CHUNK = 500;
+
+	// Reference to the program
+	private PLCA plca = PLCA.getInstance();
+
+	// Expands the levels of the multi-hop search
+	@Nullable
+	private ForkJoinPool workers;
+
+	// Selects the profiles of contacts (Ids get appended)
+	private static final String SELECT_CONTACTS_QUERY = "SELECT "
+			+ String.join(",", PLCADatabase.REQUIRED_CONTACT_ENTITYS) + ","
+			+ String.join(",", PLCADatabase.OPTIONAL_CONTACT_ENTITYS) + " FROM `user` WHERE `id` IN (";
+
+	// Selects the closed timespents of the infected user that ended after a date
+	static final String SELECT_INFECTED_SESSIONS_QUERY = "SELECT `userid`,`start`,`stop` FROM `timespent` WHERE `userid`=? AND `stop` > ?;";
+
+	// Selects the timespents of other users that overlap a time window (Open timespents end now)
+	static final String SELECT_WINDOW_QUERY = "SELECT `userid`,`start`,COALESCE(`stop`,UTC_TIMESTAMP()) AS `stop` FROM `timespent` WHERE `userid`!=? AND `start` <= ? AND (`stop` >= ? OR `stop` IS NULL);";
+
+	/**
+	 * Searches all contacts and contact-infos (time and date) that a user had
+	 * contact with
+	 *
+	 * @param con
+	 *            the connection to use
+	 * @param userId
+	 *            the id of the infected user
+	 * @param afterDate
+	 *            contacts of timespents that ended before this date wont be counted
+	 * @param marginTime
+	 *            the amount of time (minutes) that gets added to the logout time of
+	 *            the infected user as the time where the aerosols are still present
+	 * @return the users that had contact and for every user the corresponding
+	 *         contact times (contact infos)
+	 * @throws SQLException
+	 *             if anything went wrong with the connection
+	 */
+	public Map<UserEntity, List<ContactInfoEntity>> trace(Connection con, int userId, Timestamp afterDate,
+			int marginTime) throws SQLException {
+		// Gets the timespents of the infected user
+		List<Session> infected = this.loadInfectedSessions(con, userId, afterDate);
+		if (infected.isEmpty())
+			return new HashMap<>();
+
+		// Gets the margin in millis
+		long margin = marginTime * 60_000l;
+
+		// Gets the time window that all infected timespents cover
+		long from = Long.MAX_VALUE, to = Long.MIN_VALUE;
+		for (Session s : infected) {
+			from = Math.min(from, s.start);
+			to = Math.max(to, s.stop + margin);
+		}
+
+		// Loads the timespents of all other users within the window
+		IntervalTree<Session> window = new IntervalTree<>(this.loadSessions(con, from, to, userId), x -> x.start,
+				x -> x.stop);
+
+		// Contact infos by the id of the contact
+		Map<Integer, List<ContactInfoEntity>> infos = new HashMap<>();
+
+		// Searches the contacts of every infected timespent
+		for (Session i : infected)
+			window.query(i.start, i.stop + margin,
+					c -> infos.computeIfAbsent(c.userId, x -> new ArrayList<>()).add(createInfo(i, c)));
+
+		return this.loadContacts(con, infos);
+	}
+
+	/**
+	 * Loads the closed timespents of the infected user that ended after the date
+	 */
+	List<Session> loadInfectedSessions(Connection con, int userId, Timestamp afterDate) throws SQLException {
+		try (PreparedStatement ps = con.prepareStatement(SELECT_INFECTED_SESSIONS_QUERY)) {
+			ps.setInt(1, userId);
+			ps.setTimestamp(2, afterDate);
+
+			return this.readSessions(ps);
+		}
+	}
+
+	/**
+	 * Loads the timespents that overlap the time window. Timespents that are still
+	 * open end now.
+	 *
+	 * @param excludedUser
+	 *            the user whose timespents are not loaded (-1 to load the
+	 *            timespents of all users)
+	 */
+	List<Session> loadSessions(Connection con, long from, long to, int excludedUser) throws SQLException {
+		try (PreparedStatement ps = con.prepareStatement(SELECT_WINDOW_QUERY)) {
+			ps.setInt(1, excludedUser);
+			ps.setTimestamp(2, new Timestamp(to));
+			ps.setTimestamp(3, new Timestamp(from));
+
+			return this.readSessions(ps);
+		}
+	}
+
+	/**
+	 * Executes the query and reads the timespents (userid, start, stop)
+	 */
+	private List<Session> readSessions(PreparedStatement ps) throws SQLException {
+		List<Session> sessions = new ArrayList<>();
+		try (ResultSet res = ps.executeQuery()) {
+			while (res.next())
+				sessions.add(new Session(res.getInt(1), res.getTimestamp(2).getTime(), res.getTimestamp(3).getTime()));
+		}
+		return sessions;
+	}
+
+	/**
+	 * Loads the profiles of the contacts and assigns them their contact infos.
+	 * Contacts whose user does no longer exist are left out.
+	 *
+	 * @param infos
+	 *            the contact infos by the id of the contact
+	 */
+	Map<UserEntity, List<ContactInfoEntity>> loadContacts(Connection con, Map<Integer, List<ContactInfoEntity>> infos)
+			throws SQLException {
+		// Holds the contacts
+		Map<UserEntity, List<ContactInfoEntity>> contacts = new HashMap<>();
+
+		// Adds the users with their infos
+		for (UserEntity user : this.loadUsers(con, infos.keySet()).values())
+			contacts.put(user, infos.get(user.id));
+
+		return contacts;
+	}
+
+	/**
+	 * Loads the profiles of the contacts. Users that do no longer exist are left
+	 * out.
+	 *
+	 * @param userIds
+	 *            the ids of the contacts
+	 * @return the profiles by the id of the user
+	 */
+	Map<Integer, UserEntity> loadUsers(Connection con, Collection<Integer> userIds) throws SQLException {
+		// Holds the users
+		Map<Integer, UserEntity> users = new HashMap<>();
+
+		// Gets the ids of the users
+		List<Integer> ids = new ArrayList<>(userIds);
+
+		// Loads the users in chunks
+		for (int off = 0; off < ids.size(); off += USER_CHUNK) {
+			List<Integer> chunk = ids.subList(off, Math.min(ids.size(), off + USER_CHUNK));
+
+			try (PreparedStatement ps = con.prepareStatement(
+					SELECT_CONTACTS_QUERY + PLCADatabase.placeholders(chunk.size()) + ");")) {
+				for (int i = 0; i < chunk.size(); i++)
+					ps.setInt(i + 1, chunk.get(i));
+
+				try (ResultSet res = ps.executeQuery()) {
+					while (res.next()) {
+						// Creates the user
+						UserEntity user = new UserEntity();
+						// Loads the users values
+						user.load(res, PLCADatabase.REQUIRED_CONTACT_ENTITYS, PLCADatabase.OPTIONAL_CONTACT_ENTITYS);
+						// Adds the user
+						users.put(user.id, user);
+					}
+				}
+			} catch (EntityLoadException e) {
+				throw new SQLException(e);
+			}
+		}
+
+		return users;
+	}
+
+	/**
+	 * Searches the contacts of the infected user over multiple hops (Contacts of
+	 * contacts) using a breadth-first search. All timespents since the date get
+	 * loaded once, every level of the search gets expanded in parallel. A contact
+	 * can only pass on the exposure with timespents that end after he got exposed
+	 * himself. A contact that a later hop reaches with an earlier exposure gets
+	 * expanded again with that exposure (As long as the depth allows it), so the
+	 * contacts that he had between both exposures are not missed.
+	 *
+	 * @param con
+	 *            the connection to use
+	 * @param userId
+	 *            the id of the infected user
+	 * @param afterDate
+	 *            the date at which the infected user counts as exposed.
+	 *            Timespents that ended before this date wont be counted
+	 * @param marginTime
+	 *            the amount of time (minutes) that gets added to the logout time of
+	 *            an exposed user as the time where the aerosols are still present
+	 * @param depth
+	 *            how many hops are searched (1 only searches the direct contacts)
+	 * @return the reached contacts ordered by their hop and exposure. Every
+	 *         contact is listed with the lowest hop that reached him and the
+	 *         earliest exposure of all hops within the depth.
+	 * @throws SQLException
+	 *             if anything went wrong with the connection
+	 */
+	public List<ContactHop> traceHops(Connection con, int userId, Timestamp afterDate, int marginTime, int depth)
+			throws SQLException {
+		// Gets the margin in millis
+		long margin = marginTime * 60_000l;
+
+		// Loads all timespents since the date
+		List<Session> sessions = this.loadSessions(con, afterDate.getTime(), System.currentTimeMillis(), -1);
+		IntervalTree<Session> window = new IntervalTree<>(sessions, x -> x.start, x -> x.stop);
+		Map<Integer, List<Session>> sessionsByUser = sessions.stream().collect(Collectors.groupingBy(x -> x.userId));
+
+		// All reached users (Including the infected user)
+		Map<Integer, Node> visited = new HashMap<>();
+		visited.put(userId, new Node(0, afterDate.getTime()));
+
+		// Users of the current hop (Reached for the first time or with an earlier exposure)
+		List<Integer> frontier = Collections.singletonList(userId);
+
+		for (int hop = 1; hop <= depth && !frontier.isEmpty(); hop++) {
+			// Searches the contacts of every user of the hop in parallel
+			List<ForkJoinTask<Map<Integer, Long>>> tasks = new ArrayList<>();
+			for (int user : frontier) {
+				List<Session> own = sessionsByUser.getOrDefault(user, Collections.emptyList());
+				long exposure = visited.get(user).exposure;
+				tasks.add(this.getWorkers().submit(() -> expand(window, user, own, exposure, margin)));
+			}
+
+			// Users of the next hop
+			Set<Integer> next = new LinkedHashSet<>();
+
+			// Merges the found contacts
+			for (int i = 0; i < tasks.size(); i++) {
+				for (Entry<Integer, Long> found : tasks.get(i).join().entrySet()) {
+					// The infected user is exposed from the start
+					if (found.getKey() == userId)
+						continue;
+
+					Node node = visited.get(found.getKey());
+
+					// Checks if the user got reached for the first time
+					if (node == null) {
+						visited.put(found.getKey(), node = new Node(hop, found.getValue()));
+						next.add(found.getKey());
+					} else if (found.getValue() < node.exposure) {
+						// Expands the user again, he could have passed on the earlier exposure to
+						// contacts that he had before the previous one
+						node.exposure = found.getValue();
+						next.add(found.getKey());
+					}
+
+					if (!node.via.contains(frontier.get(i)))
+						node.via.add(frontier.get(i));
+				}
+			}
+
+			frontier = new ArrayList<>(next);
+		}
+
+		// Removes the infected user
+		visited.remove(userId);
+
+		// Loads the profiles of the contacts
+		Map<Integer, UserEntity> users = this.loadUsers(con, visited.keySet());
+
+		// Creates the result
+		List<ContactHop> hops = new ArrayList<>();
+		for (Entry<Integer, Node> n : visited.entrySet())
+			if (users.containsKey(n.getKey()))
+				hops.add(new ContactHop(users.get(n.getKey()), n.getValue().hop, new Timestamp(n.getValue().exposure),
+						n.getValue().via));
+
+		hops.sort(Comparator.<ContactHop>comparingInt(x -> x.hop).thenComparing(x -> x.exposure));
+		return hops;
+	}
+
+	/**
+	 * Searches the contacts of multiple infected users with a single sweep over the
+	 * timespents of the time window that all their timespents cover. The
+	 * timespents of the infected users (Extended by the margin) and of all users
+	 * get sorted by their start and swept once; every timespent is compared only
+	 * with the timespents of the other kind that have started but not yet ended.
+	 *
+	 * @param con
+	 *            the connection to use
+	 * @param userIds
+	 *            the ids of the infected users
+	 * @param afterDate
+	 *            contacts of timespents that ended before this date wont be counted
+	 * @param marginTime
+	 *            the amount of time (minutes) that gets added to the logout time of
+	 *            the infected users as the time where the aerosols are still present
+	 * @return the contacts of every infected user and all contacts merged
+	 * @throws SQLException
+	 *             if anything went wrong with the connection
+	 */
+	public ContactBatch traceBatch(Connection con, Collection<Integer> userIds, Timestamp afterDate, int marginTime)
+			throws SQLException {
+		// Gets the margin in millis
+		long margin = marginTime * 60_000l;
+
+		// Contact infos by the id of the contact for every infected user
+		Map<Integer, Map<Integer, List<ContactInfoEntity>>> infos = new HashMap<>();
+		for (int id : userIds)
+			infos.put(id, new HashMap<>());
+
+		// Earliest exposure and the infected users of every contact
+		Map<Integer, Long> exposures = new HashMap<>();
+		Map<Integer, Set<Integer>> sources = new HashMap<>();
+
+		// Gets the timespents of the infected users
+		List<Session> infected = this.loadInfectedSessions(con, infos.keySet(), afterDate);
+
+		if (!infected.isEmpty()) {
+			// Gets the time window that all infected timespents cover
+			long from = Long.MAX_VALUE, to = Long.MIN_VALUE;
+			for (Session s : infected) {
+				from = Math.min(from, s.start);
+				to = Math.max(to, s.stop + margin);
+			}
+
+			// Loads the timespents of all users within the window
+			List<Session> window = this.loadSessions(con, from, to, -1);
+
+			// Sorts both kinds by their start
+			infected.sort(Comparator.comparingLong(x -> x.start));
+			window.sort(Comparator.comparingLong(x -> x.start));
+
+			// Timespents that have started and not yet ended (Ordered by their end)
+			PriorityQueue<Session> activeInfected = new PriorityQueue<>(Comparator.comparingLong(x -> x.stop + margin));
+			PriorityQueue<Session> activeWindow = new PriorityQueue<>(Comparator.comparingLong(x -> x.stop));
+
+			// Sweeps over the starts of both kinds
+			int i = 0, w = 0;
+			while (i < infected.size() || w < window.size()) {
+				if (w >= window.size() || (i < infected.size() && infected.get(i).start <= window.get(w).start)) {
+					// Starts an infected timespent
+					Session inf = infected.get(i++);
+
+					// Removes the timespents that ended before
+					while (!activeWindow.isEmpty() && activeWindow.peek().stop < inf.start)
+						activeWindow.poll();
+
+					// All remaining timespents overlap
+					for (Session c : activeWindow)
+						addContact(inf, c, infos, exposures, sources);
+
+					activeInfected.add(inf);
+				} else {
+					// Starts a timespent of any user
+					Session c = window.get(w++);
+
+					// Removes the infected timespents that ended before (Including the margin)
+					while (!activeInfected.isEmpty() && activeInfected.peek().stop + margin < c.start)
+						activeInfected.poll();
+
+					// All remaining infected timespents overlap
+					for (Session inf : activeInfected)
+						addContact(inf, c, infos, exposures, sources);
+
+					activeWindow.add(c);
+				}
+			}
+		}
+
+		// Loads the profiles of all contacts once
+		Map<Integer, UserEntity> users = this.loadUsers(con, exposures.keySet());
+
+		// Assigns the contacts to the infected users
+		Map<Integer, Map<UserEntity, List<ContactInfoEntity>>> contacts = new HashMap<>();
+		for (Entry<Integer, Map<Integer, List<ContactInfoEntity>>> inf : infos.entrySet()) {
+			Map<UserEntity, List<ContactInfoEntity>> userContacts = new HashMap<>();
+			for (Entry<Integer, List<ContactInfoEntity>> c : inf.getValue().entrySet())
+				if (users.containsKey(c.getKey()))
+					userContacts.put(users.get(c.getKey()), c.getValue());
+			contacts.put(inf.getKey(), userContacts);
+		}
+
+		// Merges the contacts
+		List<ContactHop> merged = new ArrayList<>();
+		for (Entry<Integer, Long> e : exposures.entrySet())
+			if (users.containsKey(e.getKey()))
+				merged.add(new ContactHop(users.get(e.getKey()), 1, new Timestamp(e.getValue()),
+						new ArrayList<>(sources.get(e.getKey()))));
+		merged.sort(Comparator.comparing(x -> x.exposure));
+
+		return new ContactBatch(contacts, merged);
+	}
+
+	/**
+	 * Loads the closed timespents of the infected users that ended after the date
+	 */
+	private List<Session> loadInfectedSessions(Connection con, Collection<Integer> userIds, Timestamp afterDate)
+			throws SQLException {
+		if (userIds.isEmpty())
+			return new ArrayList<>();
+
+		try (PreparedStatement ps = con.prepareStatement("SELECT `userid`,`start`,`stop` FROM `timespent` WHERE `userid` IN ("
+				+ PLCADatabase.placeholders(userIds.size()) + ") AND `stop` > ?;")) {
+			int i = 1;
+			for (int id : userIds)
+				ps.setInt(i++, id);
+			ps.setTimestamp(i, afterDate);
+
+			return this.readSessions(ps);
+		}
+	}
+
+	/**
+	 * Records the contact of two overlapping timespents (If they are not of the
+	 * same user)
+	 */
+	private static void addContact(Session infected, Session contact,
+			Map<Integer, Map<Integer, List<ContactInfoEntity>>> infos, Map<Integer, Long> exposures,
+			Map<Integer, Set<Integer>> sources) {
+		if (infected.userId == contact.userId)
+			return;
+
+		// Appends the info to the infected user
+		infos.get(infected.userId).computeIfAbsent(contact.userId, x -> new ArrayList<>())
+				.add(createInfo(infected, contact));
+
+		// Updates the merged exposure
+		exposures.merge(contact.userId, Math.max(infected.start, contact.start), Math::min);
+		sources.computeIfAbsent(contact.userId, x -> new TreeSet<>()).add(infected.userId);
+	}
+
+	/**
+	 * Searches the users that had contact with an exposed user
+	 *
+	 * @param window
+	 *            all timespents
+	 * @param user
+	 *            the exposed user
+	 * @param own
+	 *            the timespents of the exposed user
+	 * @param exposure
+	 *            the time since the user is exposed (Millis)
+	 * @param margin
+	 *            the margin that gets added to the logout time (Millis)
+	 * @return the earliest exposure (Millis) by the id of every contact
+	 */
+	private static Map<Integer, Long> expand(IntervalTree<Session> window, int user, List<Session> own, long exposure,
+			long margin) {
+		Map<Integer, Long> found = new HashMap<>();
+
+		for (Session s : own) {
+			// Gets the time in which the user could pass on the exposure
+			long from = Math.max(s.start, exposure), to = s.stop + margin;
+			if (from > to)
+				continue;
+
+			// Searches the overlapping timespents of other users
+			window.query(from, to, c -> {
+				if (c.userId != user)
+					found.merge(c.userId, Math.max(from, c.start), Math::min);
+			});
+		}
+
+		return found;
+	}
+
+	/**
+	 * @return the pool that expands the levels of the multi-hop search (Gets
+	 *         created once it is first required)
+	 */
+	private synchronized ForkJoinPool getWorkers() {
+		if (this.workers == null)
+			this.workers = new ForkJoinPool(Math.max(1, this.plca.getConfig().<Integer>getUnsafe("contact_tracing_parallelism")));
+		return this.workers;
+	}
+
+	/**
+	 * Creates the contact info of two overlapping timespents
+	 *
+	 * @param infected
+	 *            the timespent of the infected user
+	 * @param contact
+	 *            the timespent of the contact
+	 */
+	static ContactInfoEntity createInfo(Session infected, Session contact) {
+		ContactInfoEntity info = new ContactInfoEntity();
+		info.infectedStarttime = new Timestamp(infected.start);
+		info.infectedEndtime = new Timestamp(infected.stop);
+		info.contactStarttime = new Timestamp(contact.start);
+		info.contactEndtime = new Timestamp(contact.stop);
+		info.contactID = contact.userId;
+		return info;
+	}
+
+	private static class Node {
+
+		// Hop at which the user got reached first
+		public final int hop;
+
+		// Earliest exposure of all hops that reached the user (Millis)
+		public long exposure;
+
+		// Users that passed on an exposure to the user
+		public final List<Integer> via = new ArrayList<>();
+
+		public Node(int hop, long exposure) {
+			this.hop = hop;
+			this.exposure = exposure;
+		}
+	}
+
+	static class Session {
+
+		// The user of the timespent
+		public final int userId;
+
+		// Start and stop of the timespent (Millis)
+		public final long start, stop;
+
+		public Session(int userId, long start, long stop) {
+			this.userId = userId;
+			this.start = start;
+			this.stop = stop;
+		}
+	}
+}
@@ -0,0 +1,266 @@
+package de.noahalbers.plca.backend.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import de.noahalbers.plca.backend.database.ConnectionPool.ConnectionFactory;
+import de.noahalbers.plca.backend.logger.Logger;
+
+/**
+ * Writes the overlaps of every closed timespent into the co-presence table.
+ * The timespents are processed one after another, so every pair of timespents
+ * gets written by the one that got processed last, against the one that got
+ * processed before. The writers of all backends are serialized by a named lock
+ * of the database; two writers processing overlapping timespents at the same
+ * time could otherwise each miss the other's uncommitted timespent.
+ */
+public class CopresenceWriter extends Thread {
+
+	// Selects the next closed timespents whose pairs have not been written
+	static final String SELECT_BACKLOG_QUERY = "SELECT `id`,`userid`,`start`,`stop` FROM `timespent` WHERE `copresence`=0 AND `stop` IS NOT NULL ORDER BY `stop` LIMIT ?;";
+
+	// Selects the processed timespents of other users that can overlap a time window (Locks them against edits
+	// until the pairs got written)
+	static final String SELECT_CANDIDATES_QUERY = "SELECT `id`,`userid`,`start`,`stop` FROM `timespent` WHERE `stop` >= ? AND `start` <= ? AND `copresence`=1 AND `userid`!=? LOCK IN SHARE MODE;";
+
+	// Writes a pair (Replaces a pair that got written with outdated times)
+	private static final String INSERT_PAIR_QUERY = "INSERT INTO `copresence` (`timespentid`,`contacttimespentid`,`userid`,`start`,`stop`,`contactid`,`cstart`,`cstop`) VALUES (?,?,?,?,?,?,?,?) "
+			+ "ON DUPLICATE KEY UPDATE `userid`=VALUES(`userid`),`start`=VALUES(`start`),`stop`=VALUES(`stop`),`contactid`=VALUES(`contactid`),`cstart`=VALUES(`cstart`),`cstop`=VALUES(`cstop`)";
+
+	// Name of the lock that serializes the writers of all backends
+	static final String LOCK_NAME = "plca_copresence";
+
+	// How many seconds to wait for the writer of another backend
+	private static final int LOCK_TIMEOUT = 10;
+
+	// Logger
+	private Logger log = new Logger("CopresenceWriter");
+
+	// Supplies the connection for each batch
+	private ConnectionFactory connections;
+
+	// Highest margin that the pairs get written with (Millis)
+	private long margin;
+
+	// How many timespents are processed with one connection
+	private int batchSize;
+
+	// How many millis to wait for a closed timespent until the table gets checked anyway
+	private long interval;
+
+	// Gets released once timespents got closed
+	private Semaphore signal = new Semaphore(0);
+
+	/**
+	 * @param connections
+	 *            supplies the connection for each batch (Gets closed afterwards)
+	 * @param marginTime
+	 *            the highest margin (Minutes) that contact tracing can use with the
+	 *            table
+	 * @param batchSize
+	 *            how many timespents are processed with one connection
+	 * @param interval
+	 *            how many millis to wait for a closed timespent until the table gets
+	 *            checked anyway (Catches timespents that got closed by other
+	 *            backends)
+	 */
+	public CopresenceWriter(ConnectionFactory connections, int marginTime, int batchSize, long interval) {
+		super("PLCA-CopresenceWriter");
+		this.setDaemon(true);
+		this.connections = connections;
+		this.margin = marginTime * 60_000l;
+		this.batchSize = Math.max(1, batchSize);
+		this.interval = interval;
+	}
+
+	/**
+	 * Lets the writer process the timespents that got closed
+	 */
+	public void wakeUp() {
+		this.signal.release();
+	}
+
+	@Override
+	public void run() {
+		this.log.info("Started co-presence writer");
+
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				// Processes all closed timespents (Right away on start, to catch up with the
+				// timespents that got closed while no writer ran)
+				while (this.processBatch() >= this.batchSize)
+					;
+			} catch (SQLException | RuntimeException e) {
+				this.log.warn("Failed to write co-presence pairs").critical(e);
+			}
+
+			try {
+				// Waits for closed timespents
+				this.signal.tryAcquire(this.interval, TimeUnit.MILLISECONDS);
+				this.signal.drainPermits();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Processes the next closed timespents whose pairs have not been written
+	 *
+	 * @return how many timespents got processed (0 if the writer of another
+	 *         backend kept the lock)
+	 */
+	private int processBatch() throws SQLException {
+		try (Connection con = this.connections.open()) {
+			// Waits for the writers of other backends
+			if (!SchemaMigrator.getLock(con, LOCK_NAME, LOCK_TIMEOUT)) {
+				this.log.debug("Another backend is writing the co-presence pairs");
+				return 0;
+			}
+
+			// Only locks the read rows, not the gaps between them (The writers are
+			// serialized by the lock, so logouts do not have to wait for the writer)
+			int isolation = con.getTransactionIsolation();
+			con.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+			try {
+				return this.processBatch(con);
+			} finally {
+				con.setTransactionIsolation(isolation);
+				SchemaMigrator.releaseLock(con, LOCK_NAME);
+			}
+		}
+	}
+
+	/**
+	 * Processes the next closed timespents while holding the writer lock
+	 */
+	private int processBatch(Connection con) throws SQLException {
+		// Gets the next closed timespents
+		List<Row> closed;
+		try (PreparedStatement ps = con.prepareStatement(SELECT_BACKLOG_QUERY)) {
+			ps.setInt(1, this.batchSize);
+			closed = readRows(ps);
+		}
+
+		// Writes the pairs of every timespent within its own short transaction
+		for (Row ts : closed) {
+			con.setAutoCommit(false);
+			try {
+				this.process(con, ts.id);
+				con.commit();
+			} catch (SQLException | RuntimeException e) {
+				con.rollback();
+				throw e;
+			} finally {
+				con.setAutoCommit(true);
+			}
+		}
+
+		return closed.size();
+	}
+
+	/**
+	 * Writes the pairs of the timespent against all processed timespents and marks
+	 * it as processed
+	 */
+	private void process(Connection con, int id) throws SQLException {
+		// Locks the timespent and checks that it has not changed in the meantime
+		Row ts;
+		try (PreparedStatement ps = con.prepareStatement(
+				"SELECT `id`,`userid`,`start`,`stop` FROM `timespent` WHERE `id`=? AND `copresence`=0 AND `stop` IS NOT NULL FOR UPDATE;")) {
+			ps.setInt(1, id);
+			List<Row> rows = readRows(ps);
+			if (rows.isEmpty())
+				return;
+			ts = rows.get(0);
+		}
+
+		// Gets the processed timespents of other users that can overlap with the margin
+		List<Row> others;
+		try (PreparedStatement ps = con.prepareStatement(SELECT_CANDIDATES_QUERY)) {
+			ps.setTimestamp(1, new Timestamp(ts.start.getTime() - this.margin));
+			ps.setTimestamp(2, new Timestamp(ts.stop.getTime() + this.margin));
+			ps.setInt(3, ts.userId);
+			others = readRows(ps);
+		}
+
+		// Writes the pairs (Once with each side as the infected one)
+		if (!others.isEmpty())
+			try (PreparedStatement ps = con.prepareStatement(INSERT_PAIR_QUERY)) {
+				for (Row o : others) {
+					if (this.overlaps(ts, o))
+						addPair(ps, ts, o);
+					if (this.overlaps(o, ts))
+						addPair(ps, o, ts);
+				}
+				ps.executeBatch();
+			}
+
+		// Marks the timespent as processed
+		try (PreparedStatement ps = con.prepareStatement("UPDATE `timespent` SET `copresence`=1 WHERE `id`=?;")) {
+			ps.setInt(1, ts.id);
+			ps.executeUpdate();
+		}
+	}
+
+	/**
+	 * @return if the contact's timespent overlaps the infected timespent (Extended
+	 *         by the margin)
+	 */
+	private boolean overlaps(Row infected, Row contact) {
+		return contact.start.getTime() <= infected.stop.getTime() + this.margin
+				&& contact.stop.getTime() >= infected.start.getTime();
+	}
+
+	/**
+	 * Adds the pair to the insert batch
+	 */
+	private static void addPair(PreparedStatement ps, Row infected, Row contact) throws SQLException {
+		ps.setInt(1, infected.id);
+		ps.setInt(2, contact.id);
+		ps.setInt(3, infected.userId);
+		ps.setTimestamp(4, infected.start);
+		ps.setTimestamp(5, infected.stop);
+		ps.setInt(6, contact.userId);
+		ps.setTimestamp(7, contact.start);
+		ps.setTimestamp(8, contact.stop);
+		ps.addBatch();
+	}
+
+	/**
+	 * Executes the query and reads the timespents (id, userid, start, stop)
+	 */
+	private static List<Row> readRows(PreparedStatement ps) throws SQLException {
+		List<Row> rows = new ArrayList<>();
+		try (ResultSet res = ps.executeQuery()) {
+			while (res.next())
+				rows.add(new Row(res.getInt(1), res.getInt(2), res.getTimestamp(3), res.getTimestamp(4)));
+		}
+		return rows;
+	}
+
+	private static class Row {
+
+		// Id and user of the timespent
+		public final int id, userId;
+
+		// Start and stop of the timespent
+		public final Timestamp start, stop;
+
+		public Row(int id, int userId, Timestamp start, Timestamp stop) {
+			this.id = id;
+			this.userId = userId;
+			this.start = start;
+			this.stop = stop;
+		}
+	}
+}
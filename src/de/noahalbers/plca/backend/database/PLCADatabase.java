@@ -1,6 +1,7 @@
 package de.noahalbers.plca.backend.database;
 
 import java.io.IOException;
+import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
@@ -12,24 +13,26 @@ import java.sql.Timestamp;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
 import java.util.Properties;
-import java.util.Set;
 import java.util.TimeZone;
-import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 import org.json.JSONException;
+import org.json.JSONObject;
 
 import com.mysql.cj.exceptions.RSAException;
 import com.smattme.MysqlExportService;
 
 import de.noahalbers.plca.backend.PLCA;
 import de.noahalbers.plca.backend.config.Config;
+import de.noahalbers.plca.backend.database.ConnectionPool.ConnectionFactory;
 import de.noahalbers.plca.backend.database.entitys.AdminEntity;
 import de.noahalbers.plca.backend.database.entitys.ContactInfoEntity;
 import de.noahalbers.plca.backend.database.entitys.SimpleUserEntity;
@@ -49,6 +52,90 @@ public class PLCADatabase {
 	// Reference to the logger
 	private Logger log = new Logger("PLCADatabase");
 
+	// Precomputed queries for the entitys (Build once as they never change)
+	private static final String
+			UPDATE_ADMIN_QUERY = getUpdateQuery("admin", AdminEntity.ID, AdminEntity.ATTRIBUTE_LIST),
+			UPDATE_USER_QUERY = getUpdateQuery("user", SimpleUserEntity.ID, UserEntity.ATTRIBUTE_LIST),
+			INSERT_USER_QUERY = getInsertQuery("user", UserEntity.ATTRIBUTE_LIST);
+
+	// Hot queries (Package-private so that the schema migrator can verify that they use an index)
+	static final String
+			SELECT_OPEN_TIMESPENT_QUERY = "SELECT * FROM `timespent` WHERE `userid`=? AND `stop` IS NULL LIMIT 1;";
+
+	// Condition for users that have not been used since a timestamp (Range on the last-activity index; users
+	// that are still logged in are kept). Takes the timestamp twice (Last activity and registration).
+	private static final String INACTIVE_USER_CONDITION = "`user`.`" + UserEntity.AUTODELETE + "`=1 AND `user`.`lastactivity` < ? AND `user`.`"
+			+ UserEntity.REGISTER_DATE
+			+ "` < ? AND NOT EXISTS (SELECT 1 FROM `timespent` WHERE `timespent`.`userid`=`user`.`id` AND `timespent`.`stop` IS NULL)";
+
+	// Searches the next chunk of expired users (Ordered like the index)
+	static final String SELECT_EXPIRED_USERS_QUERY = "SELECT `id`,`lastactivity` FROM `user` WHERE " + INACTIVE_USER_CONDITION
+			+ " AND (`lastactivity` > ? OR (`lastactivity` = ? AND `id` > ?)) ORDER BY `lastactivity`,`id` LIMIT ?;";
+
+	// Gets the newest version of the user change log, the oldest version that is still within the sync lag and
+	// the oldest version that is still within the retention window
+	static final String SELECT_USER_CHANGELOG_VERSIONS_QUERY = "SELECT (SELECT MAX(`version`) FROM `user_changelog`),"
+			+ "(SELECT MIN(`version`) FROM `user_changelog` WHERE `changedate` > NOW(3) - INTERVAL ? MICROSECOND),"
+			+ "(SELECT MIN(`version`) FROM `user_changelog` WHERE `changedate` >= NOW(3) - INTERVAL ? MICROSECOND);";
+
+	// Logs that a user got created, updated or deleted (Incremental user sync)
+	private static final String INSERT_USER_CHANGE_QUERY = "INSERT INTO `user_changelog` (`userid`) VALUES (?)";
+
+	// Updates the last activity of all users that are logged in
+	private static final String UPDATE_LAST_ACTIVITY_OPEN_QUERY = "UPDATE `user` u JOIN `timespent` t ON t.`userid`=u.`id` AND t.`stop` IS NULL SET u.`lastactivity`=GREATEST(u.`lastactivity`,?)";
+
+	// Procedure that searches the user (By id or rfid), checks for an open timespent and opens or closes it
+	// within one transaction. Locks the user's row so that two terminals can not toggle the same user at once.
+	// Returns the user id and the result (0: user not found, 1: logged in, 2: logged out, 3: rejected)
+	// Installed by the schema migration. The name is versioned: a changed body gets a new name and migration,
+	// so running backends keep calling the procedure they know and it never has to be dropped while in use.
+	static final String TOGGLE_PROCEDURE = "plca_toggle_timespent_v1";
+	static final String TOGGLE_PROCEDURE_BODY =
+			"CREATE PROCEDURE `" + TOGGLE_PROCEDURE + "`(IN `p_userid` INT, IN `p_rfid` VARCHAR(64), IN `p_login` TINYINT(1), IN `p_logout` TINYINT(1), IN `p_now` DATETIME)\n" +
+			"BEGIN\n" +
+			"	DECLARE `v_userid` INT DEFAULT NULL;\n" +
+			"	DECLARE `v_tsid` INT DEFAULT NULL;\n" +
+			"	DECLARE `v_result` TINYINT DEFAULT 0;\n" +
+			"	DECLARE EXIT HANDLER FOR SQLEXCEPTION BEGIN ROLLBACK; RESIGNAL; END;\n" +
+			"	START TRANSACTION;\n" +
+			"	IF `p_rfid` IS NULL THEN\n" +
+			"		SELECT `id` INTO `v_userid` FROM `user` WHERE `id`=`p_userid` FOR UPDATE;\n" +
+			"	ELSE\n" +
+			"		SELECT `id` INTO `v_userid` FROM `user` WHERE `rfidcode`=`p_rfid` FOR UPDATE;\n" +
+			"	END IF;\n" +
+			"	IF `v_userid` IS NOT NULL THEN\n" +
+			"		SELECT `id` INTO `v_tsid` FROM `timespent` WHERE `userid`=`v_userid` AND `stop` IS NULL LIMIT 1;\n" +
+			"		IF `v_tsid` IS NULL AND `p_login` THEN\n" +
+			"			INSERT INTO `timespent` (`start`,`stop`,`enddisconnect`,`userid`) VALUES (`p_now`,NULL,0,`v_userid`);\n" +
+			"			UPDATE `user` SET `lastactivity`=GREATEST(`lastactivity`,`p_now`) WHERE `id`=`v_userid`;\n" +
+			"			SET `v_result`=1;\n" +
+			"		ELSEIF `v_tsid` IS NOT NULL AND `p_logout` THEN\n" +
+			"			UPDATE `timespent` SET `stop`=`p_now`,`enddisconnect`=0 WHERE `id`=`v_tsid`;\n" +
+			"			UPDATE `user` SET `lastactivity`=GREATEST(`lastactivity`,`p_now`) WHERE `id`=`v_userid`;\n" +
+			"			SET `v_result`=2;\n" +
+			"		ELSE\n" +
+			"			SET `v_result`=3;\n" +
+			"		END IF;\n" +
+			"	END IF;\n" +
+			"	COMMIT;\n" +
+			"	SELECT `v_userid` AS `userid`, `v_result` AS `result`;\n" +
+			"END";
+
+	// Pool with the reusable connections. Will only be available once the pool got
+	// started
+	@Nullable
+	private ConnectionPool pool;
+
+	// Writer that batches the timespent toggles of concurrent requests. Will only
+	// be available if the write-behind is enabled
+	@Nullable
+	private TimespentWriter timespentWriter;
+
+	// Writer that materializes the contacts of closed timespents. Will only be
+	// available if contact tracing uses the co-presence table
+	@Nullable
+	private CopresenceWriter copresenceWriter;
+
 	/**
 	 * Generates a connection string for the database
 	 */
@@ -56,8 +143,8 @@ public class PLCADatabase {
 		// Reference to the config
 		Config cfg = this.plca.getConfig();
 
-		return String.format("jdbc:mysql://%s:%s/%s?useLegacyDatetimeCode=false&serverTimezone=%s", cfg.get("db_host"), cfg.get("db_port"),
-				cfg.get("db_databasename"),TimeZone.getDefault().getID());
+		return String.format("jdbc:mysql://%s:%s/%s?useLegacyDatetimeCode=false&serverTimezone=%s&cachePrepStmts=%s&useServerPrepStmts=%s&prepStmtCacheSize=%s&rewriteBatchedStatements=true", cfg.get("db_host"), cfg.get("db_port"),
+				cfg.get("db_databasename"),TimeZone.getDefault().getID(),cfg.get("db_cache_statements"),cfg.get("db_server_statements"),cfg.get("db_statement_cache_size"));
 	}
 
 	/**
@@ -104,13 +191,98 @@ public class PLCADatabase {
 	}
 
 	/**
-	 * Tries to start a connection to the database
+	 * Starts the pool that reuses the connections to the database. Requires the
+	 * config to be loaded. The writers are started separately once the schema has
+	 * been migrated.
+	 */
+	public void startPool() {
+		Config cfg = this.plca.getConfig();
+
+		this.pool = new ConnectionPool(
+			this::openConnection,
+			cfg.getUnsafe("db_pool_min"),
+			cfg.getUnsafe("db_pool_max"),
+			cfg.getUnsafe("db_pool_idle_timeout"),
+			cfg.getUnsafe("db_pool_acquire_timeout"),
+			cfg.getUnsafe("db_pool_validation_query"),
+			cfg.getUnsafe("db_pool_leak_threshold")
+		);
+	}
+
+	/**
+	 * Starts the writers that batch the timespent toggles and materialize the
+	 * co-presence (If enabled). Requires the schema to be migrated, as the writers
+	 * use the procedure and columns that the migrations create.
+	 */
+	public void startWriters() {
+		Config cfg = this.plca.getConfig();
+
+		// Starts the writer that batches the timespent toggles
+		if (cfg.<Boolean>getUnsafe("db_write_behind")) {
+			this.timespentWriter = new TimespentWriter(this::startConnection, cfg.getUnsafe("db_write_behind_delay"),
+					cfg.getUnsafe("db_write_behind_batch"), cfg.<Long>getUnsafe("db_write_behind_timeout"));
+			this.timespentWriter.start();
+		}
+
+		// Starts the writer that materializes the contacts of closed timespents
+		if (cfg.<String>getUnsafe("contact_tracing_mode").equals(ContactTracer.MODE_COPRESENCE)) {
+			this.copresenceWriter = new CopresenceWriter(this::startConnection, cfg.getUnsafe("copresence_max_margin"),
+					cfg.getUnsafe("copresence_batch"), cfg.<Long>getUnsafe("copresence_interval"));
+			this.copresenceWriter.start();
+		}
+	}
+
+	/**
+	 * Lets the co-presence writer (If running) write the contacts of the
+	 * timespents that got closed
+	 */
+	public void wakeCopresenceWriter() {
+		if (this.copresenceWriter != null)
+			this.copresenceWriter.wakeUp();
+	}
+
+	/**
+	 * Creates or upgrades the tables and indexes of the database
+	 * 
+	 * @throws SQLException
+	 *             if anything went wrong with the database or a migration failed
+	 */
+	public void migrateSchema() throws SQLException {
+		new SchemaMigrator(this::startConnection).migrate();
+	}
+
+	/**
+	 * Borrows a connection from the pool (Or opens a new one if the pool has not
+	 * been started)
+	 * 
+	 * @return the connection that has to be closed by the requester (Closing
+	 *         returns it to the pool)
+	 * @throws SQLException
+	 *             if anything went wrong or no connection got free in time
+	 */
+	public Connection startConnection() throws SQLException {
+		if (this.pool == null)
+			return this.openConnection();
+		return this.pool.borrow();
+	}
+
+	/**
+	 * @return the pool with the reusable connections; null if it has not been
+	 *         started
+	 */
+	@Nullable
+	public ConnectionPool getPool() {
+		return this.pool;
+	}
+
+	/**
+	 * Opens a new physical connection to the database
 	 * 
 	 * @return the connection that has to be closed by the requester
 	 * @throws SQLException
 	 *             if anything went wrong
 	 */
-	public Connection startConnection() throws SQLException {
+	private Connection openConnection() throws SQLException {
 		Config cfg = this.plca.getConfig();
 
 		// Gets the password
@@ -121,6 +293,81 @@ public class PLCADatabase {
 		return DriverManager.getConnection(this.generateConnectionString(), cfg.getUnsafe("db_user"), pw);
 	}
 
+	/**
+	 * Logs a user in or out within one round-trip. Searches the user, checks for
+	 * an open timespent and opens or closes it atomically, so that two terminals
+	 * scanning the same user at once can not create two open timespents. If the
+	 * write-behind is enabled, the toggle gets batched with those of concurrent
+	 * requests and this returns once the batch got committed.
+	 * 
+	 * @param connection
+	 *            supplies the connection to use (Not used if the write-behind is
+	 *            enabled)
+	 * @param userId
+	 *            the id of the user; only used if no rfid is given
+	 * @param rfid
+	 *            {@link Nullable} the rfid of the user
+	 * @param allowLogin
+	 *            if the user can be logged in (If he has no open timespent)
+	 * @param allowLogout
+	 *            if the user can be logged out (If he has an open timespent)
+	 * @return the state of the user after the toggle
+	 * @throws SQLException
+	 *             if anything went wrong with the database
+	 */
+	public TimespentToggle toggleTimespent(ConnectionFactory connection, int userId, @Nullable String rfid,
+			boolean allowLogin, boolean allowLogout) throws SQLException {
+		// Toggles the timespent (Batched if the write-behind is enabled)
+		TimespentToggle toggle = this.timespentWriter != null
+				? this.timespentWriter.toggle(userId, rfid, allowLogin, allowLogout)
+				: this.callToggleProcedure(connection, userId, rfid, allowLogin, allowLogout);
+
+		// Lets the co-presence of the closed timespent be written
+		if (toggle == TimespentToggle.LOGGED_OUT)
+			this.wakeCopresenceWriter();
+
+		return toggle;
+	}
+
+	/**
+	 * Toggles the timespent of the user using the stored procedure
+	 * 
+	 * @see #toggleTimespent(ConnectionFactory, int, String, boolean, boolean)
+	 */
+	private TimespentToggle callToggleProcedure(ConnectionFactory connection, int userId, @Nullable String rfid,
+			boolean allowLogin, boolean allowLogout) throws SQLException {
+		// Gets the connection
+		Connection con = connection.open();
+
+		// Prepares the call
+		try (CallableStatement cs = con.prepareCall("{CALL `" + TOGGLE_PROCEDURE + "`(?,?,?,?,?)}")) {
+			// Inserts the values
+			cs.setInt(1, userId);
+			cs.setString(2, rfid);
+			cs.setBoolean(3, allowLogin);
+			cs.setBoolean(4, allowLogout);
+			cs.setTimestamp(5, new Timestamp(System.currentTimeMillis()));
+
+			// Executes the procedure and gets the result
+			try (ResultSet res = cs.executeQuery()) {
+				// Checks if the procedure returned no result
+				if (!res.next())
+					throw new SQLException("Procedure " + TOGGLE_PROCEDURE + " returned no result");
+
+				switch (res.getInt("result")) {
+				case 0:
+					return TimespentToggle.USER_NOT_FOUND;
+				case 1:
+					return TimespentToggle.LOGGED_IN;
+				case 2:
+					return TimespentToggle.LOGGED_OUT;
+				default:
+					return TimespentToggle.REJECTED;
+				}
+			}
+		}
+	}
+
 	/**
 	 * Checks if a user with the given id is registered
 	 * 
@@ -158,7 +405,7 @@ public class PLCADatabase {
 	public void updateAdmin(Connection con, AdminEntity entity) throws SQLException, EntitySaveException {
 		// Prepares the query
 		try (PreparedStatement ps = con
-				.prepareStatement(this.getUpdateQuery("admin", AdminEntity.ID, AdminEntity.ATTRIBUTE_LIST))) {
+				.prepareStatement(UPDATE_ADMIN_QUERY)) {
 			// Inserts the values
 			entity.save(ps, AdminEntity.ATTRIBUTE_LIST);
 			// Inserts the primary value
@@ -203,50 +450,83 @@ public class PLCADatabase {
 	 *             this error should not occurre
 	 */
 	public void updateUser(Connection con, UserEntity entity) throws SQLException, EntitySaveException {
-		// Prepares the query
-		try (PreparedStatement ps = con
-				.prepareStatement(this.getUpdateQuery("user", SimpleUserEntity.ID, UserEntity.ATTRIBUTE_LIST))) {
-			// Inserts the values
-			entity.save(ps, UserEntity.ATTRIBUTE_LIST);
-			// Inserts the primary value
-			ps.setInt(UserEntity.ATTRIBUTE_LIST.length + 1, entity.id);
+		// Updates the user and logs the change together
+		con.setAutoCommit(false);
+		try {
+			// Prepares the query
+			try (PreparedStatement ps = con
+					.prepareStatement(UPDATE_USER_QUERY)) {
+				// Inserts the values
+				entity.save(ps, UserEntity.ATTRIBUTE_LIST);
+				// Inserts the primary value
+				ps.setInt(UserEntity.ATTRIBUTE_LIST.length + 1, entity.id);
+
+				// Executes the statement
+				ps.execute();
+			}
 
-			// Executes the statement
-			ps.execute();
+			// Logs the change
+			this.logUserChange(con, entity.id);
+
+			con.commit();
+		} catch (SQLException | EntitySaveException | RuntimeException e) {
+			con.rollback();
+			throw e;
+		} finally {
+			con.setAutoCommit(true);
 		}
 	}
 
 	/**
-	 * Updates a given timespent on the database
-	 * 
-	 * @param con
-	 *            the connection
-	 * @param entity
-	 *            the updated timespent entity
-	 * @throws SQLException
-	 *             if anything went wrong
-	 * @throws EntitySaveException
-	 *             this error should not occurre
+	 * Logs that a user got created, updated or deleted so that the incremental
+	 * user sync can pass the change to the clients
 	 */
-	public void updateTimespent(Connection con, TimespentEntity entity) throws SQLException, EntitySaveException {
-		// Prepares the query
-		try (PreparedStatement ps = con.prepareStatement(
-				this.getUpdateQuery("timespent", TimespentEntity.ID, TimespentEntity.ATTRIBUTE_LIST))) {
-			// Inserts the values
-			entity.save(ps, TimespentEntity.ATTRIBUTE_LIST);
-			// Inserts the primary value
-			ps.setInt(TimespentEntity.ATTRIBUTE_LIST.length + 1, entity.id);
-
-			// Executes the statement
-			ps.execute();
+	private void logUserChange(Connection con, int userId) throws SQLException {
+		try (PreparedStatement ps = con.prepareStatement(INSERT_USER_CHANGE_QUERY)) {
+			ps.setInt(1, userId);
+			ps.executeUpdate();
 		}
 	}
 
 	// Uses by getContactInfosForUser to determin what infos are required and
 	// optional
-	private static String[] REQUIRED_CONTACT_ENTITYS = { UserEntity.ID, UserEntity.FIRSTNAME, UserEntity.LASTNAME,
+	static String[] REQUIRED_CONTACT_ENTITYS = { UserEntity.ID, UserEntity.FIRSTNAME, UserEntity.LASTNAME,
 			UserEntity.POSTAL_CODE, UserEntity.LOCATION, UserEntity.STREET, UserEntity.HOUSE_NUMBER };
-	private static String[] OPTIONAL_CONTACT_ENTITYS = { UserEntity.EMAIL, UserEntity.TELEPHONE };
+	static String[] OPTIONAL_CONTACT_ENTITYS = { UserEntity.EMAIL, UserEntity.TELEPHONE };
+
+	// Joins the infected user's timespents with the overlapping timespents of other
+	// users and their profiles (Contact tracing mode 'sql')
+	static final String SELECT_CONTACTS_QUERY = "SELECT u.id, u.firstname, u.lastname, u.postalcode, u.location, u.street, u.housenumber, u.telephone, u.email, "
+			+ "i.start AS 'istart', i.stop AS 'istop', c.userid AS 'cid', c.start AS 'cstart', COALESCE(c.stop, UTC_TIMESTAMP()) AS 'cstop' "
+			+ "FROM timespent i JOIN timespent c ON i.userid != c.userid AND c.start <= i.stop + INTERVAL ? MINUTE AND (c.stop >= i.start OR c.stop IS NULL) "
+			+ "JOIN user u ON u.id=c.userid WHERE i.userid = ? AND i.stop > ? ORDER BY c.userid;";
+
+	// Looks up the materialized pairs of the infected user's timespents and joins the timespents that have no
+	// pairs yet live: Closed timespents of the contacts that the writer has not processed, unprocessed timespents
+	// of the infected user against the processed ones and the contacts that are still logged in. A pair only
+	// exists once both timespents got processed, so the parts never return the same pair twice (Contact tracing
+	// mode 'copresence')
+	static final String SELECT_COPRESENCE_QUERY = "SELECT u.id, u.firstname, u.lastname, u.postalcode, u.location, u.street, u.housenumber, u.telephone, u.email, "
+			+ "p.start AS 'istart', p.stop AS 'istop', p.contactid AS 'cid', p.cstart AS 'cstart', p.cstop AS 'cstop' "
+			+ "FROM copresence p JOIN user u ON u.id=p.contactid WHERE p.userid = ? AND p.stop > ? AND p.cstart <= p.stop + INTERVAL ? MINUTE "
+			+ "UNION ALL "
+			+ "SELECT u.id, u.firstname, u.lastname, u.postalcode, u.location, u.street, u.housenumber, u.telephone, u.email, "
+			+ "i.start AS 'istart', i.stop AS 'istop', c.userid AS 'cid', c.start AS 'cstart', c.stop AS 'cstop' "
+			+ "FROM timespent i JOIN timespent c ON c.copresence=0 AND c.stop >= i.start AND i.userid != c.userid AND c.start <= i.stop + INTERVAL ? MINUTE "
+			+ "JOIN user u ON u.id=c.userid WHERE i.userid = ? AND i.stop > ? "
+			+ "UNION ALL "
+			+ "SELECT u.id, u.firstname, u.lastname, u.postalcode, u.location, u.street, u.housenumber, u.telephone, u.email, "
+			+ "i.start AS 'istart', i.stop AS 'istop', c.userid AS 'cid', c.start AS 'cstart', c.stop AS 'cstop' "
+			+ "FROM timespent i JOIN timespent c ON c.copresence=1 AND c.stop >= i.start AND i.userid != c.userid AND c.start <= i.stop + INTERVAL ? MINUTE "
+			+ "JOIN user u ON u.id=c.userid WHERE i.userid = ? AND i.copresence=0 AND i.stop > ? "
+			+ "UNION ALL "
+			+ "SELECT u.id, u.firstname, u.lastname, u.postalcode, u.location, u.street, u.housenumber, u.telephone, u.email, "
+			+ "i.start AS 'istart', i.stop AS 'istop', c.userid AS 'cid', c.start AS 'cstart', UTC_TIMESTAMP() AS 'cstop' "
+			+ "FROM timespent i JOIN timespent c ON c.stop IS NULL AND i.userid != c.userid AND c.start <= i.stop + INTERVAL ? MINUTE "
+			+ "JOIN user u ON u.id=c.userid WHERE i.userid = ? AND i.stop > ? ORDER BY cid;";
+
+	// Searches the contacts in memory (Contact tracing mode 'memory')
+	private ContactTracer contactTracer = new ContactTracer();
 
 	/**
 	 * Searches all contacts and contact-infos (time and date) from the database
@@ -266,165 +546,190 @@ public class PLCADatabase {
 	 * @return a list with users that had contact and a list for every user with
 	 *         their corresponding contact times (contact infos)
 	 * @throws SQLException
-	 *             if anything went wrong with the connection
+	 *             if anything went wrong with the connection or the contact
+	 *             tracing mode is unknown
 	 */
 	public Map<UserEntity, List<ContactInfoEntity>> getContactInfosForUser(Connection con, int userid,
 			Timestamp afterDate, int marginTime) throws SQLException {
+		// Gets the mode
+		String mode = this.plca.getConfig().getUnsafe("contact_tracing_mode");
+
+		switch (mode) {
+		case ContactTracer.MODE_MEMORY:
+			return this.contactTracer.trace(con, userid, afterDate, marginTime);
+		case ContactTracer.MODE_SQL:
+			return this.getContactInfosForUserSQL(con, userid, afterDate, marginTime);
+		case ContactTracer.MODE_COPRESENCE:
+			return this.getContactInfosForUserCopresence(con, userid, afterDate, marginTime);
+		default:
+			throw new SQLException("Unknown contact tracing mode: " + mode);
+		}
+	}
 
-		// If anything went wrong while asyncly requesting the users this value will be
-		// set
-		AtomicReference<Exception> optError = new AtomicReference<>();
-
-		// Received user are stored here
-		Map<UserEntity, List<ContactInfoEntity>> grabbedUsers = new HashMap<>();
-		// Received contact-infos are stored here
-		List<ContactInfoEntity> grabbedInfos = new ArrayList<>();
-		
-		// Prepares the threaded runnable to grab all users that had contact
-		Runnable userSelection = () -> {
-			// Prepares the query to get all infected users
-			try (PreparedStatement ps = con.prepareStatement(
-					"SELECT DISTINCT u.id, u.firstname, u.lastname, u.postalcode, u.location, u.street, u.housenumber, u.telephone, u.email FROM timespent i JOIN timespent c ON i.userid != c.userid AND ADDTIME(CASE WHEN i.stop IS NULL THEN UTC_TIMESTAMP() ELSE i.stop END, ? ) >= c.start AND i.start <=( CASE WHEN c.stop IS NULL THEN UTC_TIMESTAMP() ELSE c.stop END) JOIN user u ON u.id=c.userid WHERE i.userid = ? AND i.stop > ?;")) {
-				// Sets the values
-				ps.setInt(1, marginTime * 60);
-				ps.setInt(2, userid);
-				ps.setTimestamp(3, afterDate);
-
-
-				// Executes the query
-				try(ResultSet res = ps.executeQuery()){					
-					// Loads all passed entitys
-					while (res.next()) {
-						// Creates the user
-						UserEntity user = new UserEntity();
-						// Loads the users values
-						user.load(res, REQUIRED_CONTACT_ENTITYS, OPTIONAL_CONTACT_ENTITYS);
-						// Adds the user
-						grabbedUsers.put(user, new ArrayList<>());
-					}
-				}
-
-			} catch (SQLException | EntityLoadException e) {
-				// Passes on the error
-				optError.set(e);
-			}
-		};
-
-		// Prepares the threaded runnable to grab all contact infos for the time a user
-		// had contact with another user
-		Runnable contactSelection = () -> {
-			// Prepares the query to grab all contact infos
-			try (PreparedStatement ps = con.prepareStatement(
-					"SELECT i.start AS 'istart', (CASE WHEN i.stop IS NULL THEN UTC_TIMESTAMP() ELSE i.stop END) AS 'istop', c.userid AS 'cid', c.start AS 'cstart', (CASE WHEN c.stop IS NULL THEN UTC_TIMESTAMP() ELSE c.stop END) AS 'cStop' FROM timespent i JOIN timespent c ON i.userid != c.userid AND ADDTIME(CASE WHEN i.stop IS NULL THEN UTC_TIMESTAMP() ELSE i.stop END, ?) >= c.start AND i.start <= (CASE WHEN c.stop IS NULL THEN UTC_TIMESTAMP() ELSE c.stop END) WHERE i.userid = ? AND i.stop > ?;")) {
-				
-				// Sets the values
-				ps.setInt(1, marginTime * 60);
-				ps.setInt(2, userid);
-				ps.setTimestamp(3, afterDate);
-
-				// Executes the query
-				try(ResultSet res = ps.executeQuery()){					
-					// Interprets the values
-					while (res.next()) {
-						// Creates the user
-						ContactInfoEntity user = new ContactInfoEntity();
-						// Loads the users values
-						user.load(res, ContactInfoEntity.ATTRIBUTE_LIST);
-						// Adds the user
-						grabbedInfos.add(user);
-					}
-				}
+	/**
+	 * Searches the contacts of a user over multiple hops (Contacts of contacts).
+	 * Always uses the in-memory engine, independent of the contact tracing mode.
+	 * 
+	 * @param con
+	 *            the connection to use
+	 * @param userid
+	 *            the id of the infected user
+	 * @param afterDate
+	 *            the date at which the infected user counts as exposed
+	 * @param marginTime
+	 *            the amount of time (minutes) that gets added to the logout time of
+	 *            an exposed user
+	 * @param depth
+	 *            how many hops are searched
+	 * @return the reached contacts with their hop and exposure
+	 * @throws SQLException
+	 *             if anything went wrong with the connection
+	 * @see ContactTracer#traceHops(Connection, int, Timestamp, int, int)
+	 */
+	public List<ContactHop> getContactHopsForUser(Connection con, int userid, Timestamp afterDate, int marginTime,
+			int depth) throws SQLException {
+		return this.contactTracer.traceHops(con, userid, afterDate, marginTime, depth);
+	}
 
-			} catch (SQLException | EntityLoadException e) {
-				optError.set(e);
-			}
-		};
+	/**
+	 * Searches the contacts of multiple infected users at once. Always uses the
+	 * in-memory engine, independent of the contact tracing mode.
+	 * 
+	 * @param con
+	 *            the connection to use
+	 * @param userids
+	 *            the ids of the infected users
+	 * @param afterDate
+	 *            contacts of timespents that ended before this date wont be counted
+	 * @param marginTime
+	 *            the amount of time (minutes) that gets added to the logout time of
+	 *            the infected users
+	 * @return the contacts of every infected user and all contacts merged
+	 * @throws SQLException
+	 *             if anything went wrong with the connection
+	 * @see ContactTracer#traceBatch(Connection, Collection, Timestamp, int)
+	 */
+	public ContactBatch getContactInfosForUsers(Connection con, Collection<Integer> userids, Timestamp afterDate,
+			int marginTime) throws SQLException {
+		return this.contactTracer.traceBatch(con, userids, afterDate, marginTime);
+	}
 
-		// Creates the threads
-		Thread userThread = new Thread(userSelection);
-		Thread contactThread = new Thread(contactSelection);
+	/**
+	 * Searches all contacts and contact-infos by letting the database join the
+	 * timespents (Contact tracing mode 'sql'). The join runs once and returns the
+	 * contact's profile with every contact-info, ordered by the contact so that
+	 * the rows can be grouped in a single pass.
+	 * 
+	 * @see #getContactInfosForUser(Connection, int, Timestamp, int)
+	 */
+	private Map<UserEntity, List<ContactInfoEntity>> getContactInfosForUserSQL(Connection con, int userid,
+			Timestamp afterDate, int marginTime) throws SQLException {
+		// Prepares the query that joins the infected user's timespents with all
+		// overlapping timespents of other users (Open timespents of the contacts end now)
+		try (PreparedStatement ps = con.prepareStatement(SELECT_CONTACTS_QUERY, ResultSet.TYPE_FORWARD_ONLY,
+				ResultSet.CONCUR_READ_ONLY)) {
+			// Streams the rows instead of loading them all at once
+			ps.setFetchSize(Integer.MIN_VALUE);
 
-		// Starts the threads
-		userThread.start();
-		contactThread.start();
+			// Sets the values
+			ps.setInt(1, marginTime);
+			ps.setInt(2, userid);
+			ps.setTimestamp(3, afterDate);
 
-		// Waits for both threads to finish
-		try {
-			userThread.join();
-			contactThread.join();
-		} catch (InterruptedException e) {
+			return groupContacts(ps);
 		}
+	}
 
-		// Gets a possible error
-		Exception ex = optError.get();
+	/**
+	 * Searches all contacts and contact-infos by looking up the pairs that the
+	 * {@link CopresenceWriter} materialized when the timespents got closed
+	 * (Contact tracing mode 'copresence'). Timespents that are still open or
+	 * waiting for the writer are joined live. Falls back to the in-memory engine if
+	 * the margin exceeds the margin that the pairs got written with.
+	 * 
+	 * @see #getContactInfosForUser(Connection, int, Timestamp, int)
+	 */
+	private Map<UserEntity, List<ContactInfoEntity>> getContactInfosForUserCopresence(Connection con, int userid,
+			Timestamp afterDate, int marginTime) throws SQLException {
+		// Checks if the pairs can not answer the search
+		if (this.copresenceWriter == null
+				|| marginTime > this.plca.getConfig().<Integer>getUnsafe("copresence_max_margin")) {
+			this.log.debug("Co-presence table is not usable for the search, searching in memory");
+			return this.contactTracer.trace(con, userid, afterDate, marginTime);
+		}
 
-		// Check if an error occurred
-		if (ex != null)
-			throw ex instanceof SQLException ? (SQLException) ex : new SQLException(ex);
+		// Prepares the lookup
+		try (PreparedStatement ps = con.prepareStatement(SELECT_COPRESENCE_QUERY, ResultSet.TYPE_FORWARD_ONLY,
+				ResultSet.CONCUR_READ_ONLY)) {
+			// Streams the rows instead of loading them all at once
+			ps.setFetchSize(Integer.MIN_VALUE);
+
+			// Sets the values of the materialized pairs
+			ps.setInt(1, userid);
+			ps.setTimestamp(2, afterDate);
+			ps.setInt(3, marginTime);
+
+			// Sets the values of the live joins (Unprocessed contacts, unprocessed
+			// timespents of the infected user and the contacts that are still logged in)
+			for (int i = 4; i <= 12; i += 3) {
+				ps.setInt(i, marginTime);
+				ps.setInt(i + 1, userid);
+				ps.setTimestamp(i + 2, afterDate);
+			}
 
-		// Gets the users as a keyset
-		Set<UserEntity> rawUsers = grabbedUsers.keySet();
-		
-		try {
-			// Iterates over all contact-infos
-			grabbedInfos.forEach(i -> {
-				// Searches the user with the corresponding user-id (for the contact)
-				Optional<UserEntity> contact = rawUsers.stream().filter(x -> x.id == i.contactID).findFirst();
-				
-				// Checks if the user got found
-				if(contact.isPresent())
-					// Appends the contact-info
-					grabbedUsers.get(contact.get()).add(i);
-			});
-		} catch (Exception e) {
-			throw new SQLException(e);
+			return groupContacts(ps);
 		}
-
-		return grabbedUsers;
 	}
 
 	/**
-	 * Creates a new timespent on the database
+	 * Executes the contact query and groups the rows (Ordered by the contact) by
+	 * their contact in a single pass
 	 * 
-	 * @param con
-	 *            the connection
-	 * @param ts
-	 *            the newly created timespententity. Should not contain an id, as
-	 *            that is the primary key and will be set after creation by the
-	 *            database.
+	 * @param ps
+	 *            the prepared contact query
+	 * @return the contacts with their contact-infos
 	 * @throws SQLException
-	 *             if anything went wrong with the database
-	 * @throws EntitySaveException
-	 *             this error should not occurre. If it does it is an unknown error
-	 * @throws IllegalStateException
-	 *             if the id is duplicated
+	 *             if anything went wrong with the connection or a row could not
+	 *             be loaded
 	 */
-	public void createTimespent(Connection con, TimespentEntity ts)
-			throws IllegalStateException, SQLException, EntitySaveException {
+	private static Map<UserEntity, List<ContactInfoEntity>> groupContacts(PreparedStatement ps) throws SQLException {
+		// Contact-infos by the id of the contact
+		Map<Integer, List<ContactInfoEntity>> infosById = new HashMap<>();
 
-		// Checks if the id is set
-		if (ts.id != null)
-			throw new IllegalStateException(TimespentEntity.ID);
+		// Received users with their contact-infos
+		Map<UserEntity, List<ContactInfoEntity>> contacts = new HashMap<>();
 
-		// Prepares the query
-		try (PreparedStatement ps = con.prepareStatement(
-				this.getInsertQuery("timespent", TimespentEntity.ATTRIBUTE_LIST), Statement.RETURN_GENERATED_KEYS)) {
-			// Inserts all values
-			ts.save(ps, TimespentEntity.ATTRIBUTE_LIST);
-			// Creates the user
-			ps.executeUpdate();
+		// Executes the query
+		try (ResultSet res = ps.executeQuery()) {
+			while (res.next()) {
+				// Gets the infos of the contact
+				List<ContactInfoEntity> infos = infosById.get(res.getInt(ContactInfoEntity.CONTACT_ID));
 
-			// Gets the id
-			try(ResultSet rs = ps.getGeneratedKeys()){
-				// Gets the result for the new id
-				rs.next();
-				
-				// Appends the id to the admin
-				ts.id = rs.getInt(1);
+				// Checks if this is the first row of the contact
+				if (infos == null) {
+					// Creates the user
+					UserEntity user = new UserEntity();
+					// Loads the users values
+					user.load(res, REQUIRED_CONTACT_ENTITYS, OPTIONAL_CONTACT_ENTITYS);
+					// Adds the user
+					contacts.put(user, infos = new ArrayList<>());
+					infosById.put(user.id, infos);
+				}
+
+				// Creates the contact-info
+				ContactInfoEntity info = new ContactInfoEntity();
+				// Loads the info's values
+				info.load(res, ContactInfoEntity.ATTRIBUTE_LIST);
+				// Appends the info
+				infos.add(info);
 			}
+		} catch (EntityLoadException e) {
+			throw new SQLException(e);
 		}
+
+		return contacts;
 	}
-	
+
 	/**
 	 * Tries to load the last open timespent entity (that has not been logged out)
 	 * 
@@ -440,8 +745,7 @@ public class PLCADatabase {
 	public Optional<TimespentEntity> getLastOpenTimespent(Connection con, int userId) throws SQLException {
 
 		// Creates the statement
-		try (PreparedStatement ps = con
-				.prepareStatement("SELECT * FROM `timespent` WHERE `userid`=? AND `stop` IS NULL LIMIT 1;")) {
+		try (PreparedStatement ps = con.prepareStatement(SELECT_OPEN_TIMESPENT_QUERY)) {
 			ps.setInt(1, userId);
 
 			// Executes the query
@@ -494,27 +798,40 @@ public class PLCADatabase {
 		if (user.id != null)
 			throw new IllegalStateException(SimpleUserEntity.ID);
 
-		// Prepares the statement
-		try (PreparedStatement ps = con.prepareStatement(this.getInsertQuery("user", UserEntity.ATTRIBUTE_LIST),
-				Statement.RETURN_GENERATED_KEYS)) {
-
-			// Inserts all values
-			user.save(ps, UserEntity.ATTRIBUTE_LIST);
-			
-			// Creates the user
-			ps.executeUpdate();
-
-			// Gets the id
-			try(ResultSet rs = ps.getGeneratedKeys()){
-				// Gets the id of the new row
-				rs.next();
+		// Creates the user and logs the change together
+		con.setAutoCommit(false);
+		try {
+			// Prepares the statement
+			try (PreparedStatement ps = con.prepareStatement(INSERT_USER_QUERY, Statement.RETURN_GENERATED_KEYS)) {
+	
+				// Inserts all values
+				user.save(ps, UserEntity.ATTRIBUTE_LIST);
 				
-				// Appends the id to the admin
-				user.id = rs.getInt(1);
+				// Creates the user
+				ps.executeUpdate();
+	
+				// Gets the id
+				try(ResultSet rs = ps.getGeneratedKeys()){
+					// Gets the id of the new row
+					rs.next();
+					
+					// Appends the id to the admin
+					user.id = rs.getInt(1);
+				}
 			}
 
+			// Logs the change
+			this.logUserChange(con, user.id);
+
+			con.commit();
 		} catch (SQLIntegrityConstraintViolationException e) {
+			con.rollback();
 			throw new DuplicatedEntryException(e);
+		} catch (SQLException | EntitySaveException | RuntimeException e) {
+			con.rollback();
+			throw e;
+		} finally {
+			con.setAutoCommit(true);
 		}
 
 	}
@@ -529,12 +846,36 @@ public class PLCADatabase {
 	 *             if anything went wrong with the connection
 	 */
 	public int logoutAllUsers(Connection con) throws SQLException {
-		// Creates the query
-		try (PreparedStatement ps = con.prepareStatement("UPDATE `timespent` SET `stop`=? WHERE `stop` IS NULL;")) {
-			ps.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
+		// Gets the current timestamp
+		Timestamp current = new Timestamp(System.currentTimeMillis());
+
+		con.setAutoCommit(false);
+		try {
+			// Updates the last activity of all users that get logged out
+			try (PreparedStatement ps = con.prepareStatement(UPDATE_LAST_ACTIVITY_OPEN_QUERY + ";")) {
+				ps.setTimestamp(1, current);
+				ps.execute();
+			}
+
+			// Creates the query
+			int loggedOut;
+			try (PreparedStatement ps = con.prepareStatement("UPDATE `timespent` SET `stop`=? WHERE `stop` IS NULL;")) {
+				ps.setTimestamp(1, current);
+
+				// Sends the update
+				loggedOut = ps.executeUpdate();
+			}
+
+			con.commit();
 
-			// Sends the update
-			return ps.executeUpdate();
+			// Lets the co-presence of the closed timespents be written
+			this.wakeCopresenceWriter();
+			return loggedOut;
+		} catch (SQLException e) {
+			con.rollback();
+			throw e;
+		} finally {
+			con.setAutoCommit(true);
 		}
 	}
 
@@ -549,49 +890,161 @@ public class PLCADatabase {
 	public void doAutologoutUsers(Connection con) throws SQLException {
 		// Gets the current timestamp
 		Timestamp current = new Timestamp(System.currentTimeMillis());
-		// Creates the query
-		try (PreparedStatement ps = con.prepareStatement(
-				"UPDATE `timespent` SET `stop`=?,`enddisconnect`=1 WHERE `stop` IS NULL AND TIMESTAMPDIFF(hour,start,?) >= ?;")) {
-			// Inserts all values
-			ps.setTimestamp(1, current);
-			ps.setTimestamp(2, current);
-			ps.setInt(3, this.plca.getConfig().getUnsafe("autologout_after_time"));
+		// Gets after how many hours the users are logged out
+		int hours = this.plca.getConfig().getUnsafe("autologout_after_time");
 
-			// Executes the statement
-			ps.execute();
+		con.setAutoCommit(false);
+		try {
+			// Updates the last activity of all users that get logged out
+			try (PreparedStatement ps = con.prepareStatement(
+					UPDATE_LAST_ACTIVITY_OPEN_QUERY + " WHERE TIMESTAMPDIFF(hour,t.`start`,?) >= ?;")) {
+				ps.setTimestamp(1, current);
+				ps.setTimestamp(2, current);
+				ps.setInt(3, hours);
+				ps.execute();
+			}
+
+			// Creates the query
+			try (PreparedStatement ps = con.prepareStatement(
+					"UPDATE `timespent` SET `stop`=?,`enddisconnect`=1 WHERE `stop` IS NULL AND TIMESTAMPDIFF(hour,start,?) >= ?;")) {
+				// Inserts all values
+				ps.setTimestamp(1, current);
+				ps.setTimestamp(2, current);
+				ps.setInt(3, hours);
+
+				// Executes the statement
+				ps.execute();
+			}
+
+			con.commit();
+
+			// Lets the co-presence of the closed timespents be written
+			this.wakeCopresenceWriter();
+		} catch (SQLException e) {
+			con.rollback();
+			throw e;
+		} finally {
+			con.setAutoCommit(true);
 		}
 	}
 
 	/**
-	 * Deletes old accounts that have not been used in the specified amount of time
-	 * and also old timespent-entrys that no longer have a user
+	 * Deletes old accounts (With their timespents) that have not been used in the
+	 * specified amount of time. Deletes in small chunks with a pause in between so
+	 * that logins are never blocked for long.
 	 * 
 	 * @param con
 	 *            the connection
+	 * @return how many users (key) and timespents (value) got deleted
 	 * @throws SQLException
 	 *             if anything went wrong with the connection
 	 */
-	public void doAutoDeleteAccounts(Connection con) throws SQLException {
+	public Entry<Integer, Integer> doAutoDeleteAccounts(Connection con) throws SQLException {
+		// Reference to the config
+		Config cfg = this.plca.getConfig();
+
+		// Gets the chunk settings
+		int chunkSize = Math.max(1, cfg.<Integer>getUnsafe("autodelete_chunk_size"));
+		long pause = cfg.getUnsafe("autodelete_chunk_pause");
 
 		// Calculates the timestamp before which old accounts should be deleted
-		Timestamp ts = new Timestamp(System.currentTimeMillis() + (Long) this.plca.getConfig().get("autodelete_time"));
-		// Creates the statement
-		try (Statement stmt = con.createStatement(ResultSet.TYPE_SCROLL_SENSITIVE, ResultSet.CONCUR_UPDATABLE)) {
-			// Adds the batches to delete
-			stmt.addBatch(
-					"CREATE TEMPORARY TABLE IF NOT EXISTS `oldUsers` AS (SELECT `user`.`id` as `id` FROM `timespent` `o` LEFT JOIN `timespent` `b` ON `o`.`userid` = `b`.`userid` AND `o`.`stop` < `b`.`stop` right outer JOIN `user` ON `o`.`userid` = `user`.`id` WHERE(`b`.`stop` IS NULL AND `o`.`stop` IS NOT NULL AND `o`.`stop` AND `o`.`stop` < '"
-							+ ts.toString() + "') or `b`.`userid` IS NULL);");
-			stmt.addBatch(
-					"DELETE FROM `user` where `autodeleteaccount` and `id` IN (SELECT `id` FROM `oldUsers`) and `createdate` < '"
-							+ ts.toString() + "';");
-			stmt.addBatch("DROP TABLE IF EXISTS `oldUsers`;");
-
-			stmt.addBatch("DELETE t FROM `timespent` t LEFT JOIN `user` u on t.userid=u.id WHERE u.id IS NULL;");
-			
-			// Executes the batch
-			stmt.executeBatch();
+		Timestamp ts = new Timestamp(System.currentTimeMillis() - cfg.<Long>getUnsafe("autodelete_time"));
+
+		// How many rows got deleted
+		int users = 0, timespents = 0;
+
+		// Last activity and id after which the next chunk starts
+		Timestamp lastActivity = new Timestamp(0);
+		int lastId = 0;
+
+		while (true) {
+			// Ids of the expired users of the chunk
+			List<Integer> ids = new ArrayList<>();
+
+			// Searches the next chunk of expired users (Ordered like the index)
+			try (PreparedStatement ps = con.prepareStatement(SELECT_EXPIRED_USERS_QUERY)) {
+				ps.setTimestamp(1, ts);
+				ps.setTimestamp(2, ts);
+				ps.setTimestamp(3, lastActivity);
+				ps.setTimestamp(4, lastActivity);
+				ps.setInt(5, lastId);
+				ps.setInt(6, chunkSize);
+
+				try (ResultSet res = ps.executeQuery()) {
+					while (res.next()) {
+						ids.add(res.getInt(1));
+						lastActivity = res.getTimestamp(2);
+					}
+				}
+			}
+
+			// Checks if no more users are expired
+			if (ids.isEmpty())
+				break;
+			lastId = ids.get(ids.size() - 1);
+
+			// Deletes the chunk within one short transaction
+			con.setAutoCommit(false);
+			try {
+				// Deletes the users (Rechecks if they got used in the meantime)
+				try (PreparedStatement ps = con.prepareStatement(
+						"DELETE FROM `user` WHERE `id` IN (" + placeholders(ids.size()) + ") AND " + INACTIVE_USER_CONDITION + ";")) {
+					int i = 1;
+					for (int id : ids)
+						ps.setInt(i++, id);
+					ps.setTimestamp(i++, ts);
+					ps.setTimestamp(i, ts);
+					users += ps.executeUpdate();
+				}
+
+				// Logs the deletions (Users that got used in the meantime are only send again)
+				try (PreparedStatement ps = con.prepareStatement(INSERT_USER_CHANGE_QUERY)) {
+					for (int id : ids) {
+						ps.setInt(1, id);
+						ps.addBatch();
+					}
+					ps.executeBatch();
+				}
+
+				// Deletes the timespents of the deleted users
+				try (PreparedStatement ps = con.prepareStatement("DELETE FROM `timespent` WHERE `userid` IN ("
+						+ placeholders(ids.size()) + ") AND NOT EXISTS (SELECT 1 FROM `user` WHERE `user`.`id`=`timespent`.`userid`);")) {
+					for (int i = 0; i < ids.size(); i++)
+						ps.setInt(i + 1, ids.get(i));
+					timespents += ps.executeUpdate();
+				}
+
+				// Deletes the co-presence pairs of the deleted users (On both sides)
+				for (String column : new String[] { "userid", "contactid" })
+					try (PreparedStatement ps = con.prepareStatement("DELETE FROM `copresence` WHERE `" + column + "` IN ("
+							+ placeholders(ids.size()) + ") AND NOT EXISTS (SELECT 1 FROM `user` WHERE `user`.`id`=`copresence`.`" + column + "`);")) {
+						for (int i = 0; i < ids.size(); i++)
+							ps.setInt(i + 1, ids.get(i));
+						ps.executeUpdate();
+					}
+
+				con.commit();
+			} catch (SQLException e) {
+				con.rollback();
+				throw e;
+			} finally {
+				con.setAutoCommit(true);
+			}
+
+			// Checks if this was the last chunk
+			if (ids.size() < chunkSize)
+				break;
+
+			// Gives the logins time to access the tables
+			try {
+				Thread.sleep(pause);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
 		}
 
+		return new AbstractMap.SimpleEntry<>(users, timespents);
 	}
 
 	/**
@@ -633,40 +1086,149 @@ public class PLCADatabase {
 	}
 
 	/**
-	 * Grabs all users (Simplified profiles) from the database
+	 * Grabs all users (Simplified profiles) from the database as a json-array that
+	 * reads the rows while it gets written. The rows are streamed from the
+	 * database one by one (forward-only cursor), so the memory does not grow with
+	 * the number of users. The array must be closed once it got written, until
+	 * then the connection can not be used for other queries.
 	 * 
 	 * @param con
 	 *            the connection to the database
-	 * @return all users from that are registered inside the database (Simple
-	 *         profiles)
+	 * @return the array with all users (Simple profiles)
 	 * @throws SQLException
 	 *             if anything went wrong with the connection
 	 */
-	public SimpleUserEntity[] getSimpleUsers(Connection con) throws SQLException {
-		try (
-			// Starts the statement
-			PreparedStatement query = con.prepareStatement("SELECT id,firstname,lastname FROM user;");
-			// Executes the query and gets the result
-			ResultSet res = query.executeQuery()) {
-
-			// Holds all found users
-			List<SimpleUserEntity> users = new ArrayList<>();
+	public StreamedJSONArray streamSimpleUsers(Connection con) throws SQLException {
+		// Starts the statement as a forward-only cursor
+		PreparedStatement query = con.prepareStatement("SELECT id,firstname,lastname FROM user;",
+				ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		try {
+			// Lets the driver stream the rows instead of loading them all at once
+			query.setFetchSize(Integer.MIN_VALUE);
 
-			// Grabs all users
-			while (res.next()) {
+			return new StreamedJSONArray(query, query.executeQuery(), row -> {
 				// Creates the user
 				SimpleUserEntity sue = new SimpleUserEntity();
 				// Imports all parameters
-				sue.load(res, SimpleUserEntity.ATTRIBUTE_LIST);
-				// Appends the object to the list
-				users.add(sue);
+				sue.load(row, SimpleUserEntity.ATTRIBUTE_LIST);
+
+				// Converts the user to json
+				JSONObject o = new JSONObject();
+				sue.save(o, SimpleUserEntity.ATTRIBUTE_LIST);
+				return o;
+			});
+		} catch (SQLException | RuntimeException e) {
+			query.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Grabs all users (Simplified profiles) that got created, updated or deleted
+	 * since the given version of the user list. Changes that are newer than the
+	 * sync lag are send, but not included in the returned version, so that they
+	 * get send again with the next sync (Changes of transactions that had not
+	 * committed yet would otherwise be skipped).
+	 * 
+	 * @param con
+	 *            the connection to the database
+	 * @param since
+	 *            the version that the client got with its last sync (0 to get all
+	 *            users)
+	 * @return the changes and the version for the next sync
+	 * @throws SQLException
+	 *             if anything went wrong with the connection
+	 */
+	public UserChanges getUserChanges(Connection con, long since) throws SQLException {
+		// Newest version, the oldest version that is still within the sync lag and the
+		// oldest version that is still within the retention window
+		long newest, unsafe, retained;
+		try (PreparedStatement ps = con.prepareStatement(SELECT_USER_CHANGELOG_VERSIONS_QUERY)) {
+			ps.setLong(1, this.plca.getConfig().<Long>getUnsafe("user_sync_lag") * 1000);
+			ps.setLong(2, this.plca.getConfig().<Long>getUnsafe("user_sync_retention") * 1000);
+
+			try (ResultSet res = ps.executeQuery()) {
+				res.next();
+				newest = res.getLong(1);
+				unsafe = res.getObject(2) == null ? Long.MAX_VALUE : res.getLong(2);
+				retained = res.getObject(3) == null ? newest + 1 : res.getLong(3);
 			}
+		}
 
-			return (SimpleUserEntity[]) users.toArray(new SimpleUserEntity[users.size()]);
+		// Checks if the client's version does not belong to this log (Eg. a restored
+		// database) or is older than the retention window (Deletions that it has not
+		// received may have been removed from the log); the client then has to replace
+		// its whole list
+		boolean full = since <= 0 || since > newest || since < retained - 1;
+		if (full)
+			since = 0;
+
+		// Holds the changed and deleted users
+		List<SimpleUserEntity> users = new ArrayList<>();
+		List<Integer> deleted = new ArrayList<>();
+
+		// Gets every changed user once (Users that no longer exist got deleted)
+		try (PreparedStatement ps = con.prepareStatement("SELECT c.`userid`, u.`id`, u.`firstname`, u.`lastname` FROM "
+				+ "(SELECT DISTINCT `userid` FROM `user_changelog` WHERE `version` > ?) c LEFT JOIN `user` u ON u.`id`=c.`userid`;")) {
+			ps.setLong(1, since);
+
+			try (ResultSet res = ps.executeQuery()) {
+				while (res.next()) {
+					// Checks if the user got deleted
+					if (res.getObject(SimpleUserEntity.ID) == null) {
+						if (!full)
+							deleted.add(res.getInt(1));
+						continue;
+					}
+
+					// Creates the user
+					SimpleUserEntity sue = new SimpleUserEntity();
+					// Imports all parameters
+					sue.load(res, SimpleUserEntity.ATTRIBUTE_LIST);
+					users.add(sue);
+				}
+			}
 		} catch (EntityLoadException e) {
 			throw new SQLException(e);
 		}
 
+		// Gets the version for the next sync (Excludes the changes within the lag)
+		long version = Math.max(since, Math.min(newest, unsafe - 1));
+
+		return new UserChanges(version, full, users, deleted);
+	}
+
+	/**
+	 * Removes the changes of the user change log that got superseded by a newer
+	 * change of the same user and the deletions that are older than the retention
+	 * window. Every existing user keeps his newest change, so syncs from any
+	 * version still receive all users; clients whose version is older than the
+	 * retention window have to replace their whole list.
+	 * 
+	 * @param con
+	 *            the connection to the database
+	 * @return how many changes got removed
+	 * @throws SQLException
+	 *             if anything went wrong with the connection
+	 */
+	public int compactUserChangelog(Connection con) throws SQLException {
+		// How many changes got removed
+		int removed;
+
+		// Removes the superseded changes
+		try (PreparedStatement ps = con.prepareStatement("DELETE l FROM `user_changelog` l JOIN `user_changelog` n "
+				+ "ON n.`userid`=l.`userid` AND n.`version` > l.`version`;")) {
+			removed = ps.executeUpdate();
+		}
+
+		// Removes the deletions that are older than the retention window
+		try (PreparedStatement ps = con.prepareStatement("DELETE FROM `user_changelog` WHERE `changedate` < NOW(3) - INTERVAL ? MICROSECOND "
+				+ "AND NOT EXISTS (SELECT 1 FROM `user` WHERE `user`.`id`=`user_changelog`.`userid`);")) {
+			ps.setLong(1, this.plca.getConfig().<Long>getUnsafe("user_sync_retention") * 1000);
+			removed += ps.executeUpdate();
+		}
+
+		return removed;
 	}
 
 	/**
@@ -704,48 +1266,6 @@ public class PLCADatabase {
 		}
 	}
 
-	/**
-	 * Searches a user and if any open existing timespent is available that to. The
-	 * search depends on the user's rfid that gets passed.
-	 * 
-	 * @param rfid
-	 *            - the rfid of the user to search for
-	 * @return if the user is not found, an empty entry with (null;null); otherwise
-	 *         if the user is found but no corresponding timespententity that the
-	 *         user and an empty value on the tuple (user;null); if both are found,
-	 *         both (user;timespent)
-	 */
-	public Entry<SimpleUserEntity, TimespentEntity> getSimpleUserByRFID(String rfid, Connection con)
-			throws SQLException {
-
-		// The user that shall be found
-		SimpleUserEntity user = new SimpleUserEntity();
-
-		// Prepares the select query for the user
-		try (PreparedStatement ps = con.prepareStatement(
-				this.getSelectQuery("user", UserEntity.RFID + "=?", SimpleUserEntity.ATTRIBUTE_LIST))) {
-			// Inserts the values
-			ps.setString(1, rfid);
-			// Executes the query
-			try(ResultSet res = ps.executeQuery()){				
-				// Checks if no user got found
-				if (!res.next())
-					return new AbstractMap.SimpleEntry<>(null, null);
-				
-				// Tries to parse the user
-				user.load(res, SimpleUserEntity.ATTRIBUTE_LIST);
-			}
-		} catch (EntityLoadException e) {
-			throw new SQLException(e);
-		}
-
-		// Loads the last open timespent of that user
-		Optional<TimespentEntity> ts = this.getLastOpenTimespent(con, user.id);
-
-		// Returns the entry for the user and optionally the timespent
-		return new AbstractMap.SimpleEntry<>(user, ts.isPresent() ? ts.get() : null);
-	}
-
 	/**
 	 * Generates a string that can be used as an update query for a prepared
 	 * statement. Leaves questionmark's for all given entry's to fill by the
@@ -757,32 +1277,12 @@ public class PLCADatabase {
 	 *            the entry's that are expected to be filled.
 	 * @return the query as a string
 	 */
-	private String getUpdateQuery(String table, String primaryAttribute, String... entrys) {
+	private static String getUpdateQuery(String table, String primaryAttribute, String... entrys) {
 		// Creates the query to update an entity
 		return String.format("UPDATE `" + table + "` SET %s WHERE %s=?",
 				Arrays.stream(entrys).map(i -> '`' + i + "`=?").collect(Collectors.joining(",")), primaryAttribute);
 	}
 
-	/**
-	 * Generates a string that can be used as a select query for a prepared
-	 * statement.
-	 * 
-	 * @param table
-	 *            the table that should be used
-	 * @param conditions
-	 *            {@link Nullable} conditions that are applied behind the where
-	 *            clause if given
-	 * @param selectEntrys
-	 *            the entry's that are expected to be returned by the select-query
-	 * @return the query as a string
-	 */
-	private String getSelectQuery(String table, @Nullable String conditions, String... selectEntrys) {
-		// Creates the query to select a number of entitys
-		return String.format("SELECT %s FROM `%s` %s",
-				Arrays.stream(selectEntrys).map(i -> '`' + i + "`").collect(Collectors.joining(",")), table,
-				conditions == null ? "" : "WHERE " + conditions);
-	}
-
 	/**
 	 * Generates a string that can be used as an insert query for a prepared
 	 * statement. Leaves questionmark's for all given entry's to fill by the
@@ -794,12 +1294,20 @@ public class PLCADatabase {
 	 *            the entry's that are expected to be filled.
 	 * @return the query as a string
 	 */
-	private String getInsertQuery(String table, String... entrys) {
+	private static String getInsertQuery(String table, String... entrys) {
 		// Creates the query to create an entity
 		return String.format("INSERT INTO `" + table + "` (%s) VALUES (%s)", String.join(",", entrys),
 				String.join(",", Arrays.stream(entrys).map(i -> "?").collect(Collectors.joining(","))));
 	}
 
+	/**
+	 * @return the given amount of comma separated questionmarks (For the values of
+	 *         an IN-condition)
+	 */
+	static String placeholders(int amount) {
+		return String.join(",", Collections.nCopies(amount, "?"));
+	}
+
 	/**
 	 * Takes an duplicated exception and returns the exact name of the field or
 	 * combined field that is duplicated.
@@ -0,0 +1,498 @@
+package de.noahalbers.plca.backend.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.stream.Collectors;
+
+import de.noahalbers.plca.backend.database.ConnectionPool.ConnectionFactory;
+import de.noahalbers.plca.backend.logger.Logger;
+
+public class SchemaMigrator {
+
+	// Name of the lock that prevents two backends from migrating at the same time
+	private static final String LOCK_NAME = "plca_schema_migration";
+
+	// How many seconds to wait for the lock
+	private static final int LOCK_TIMEOUT = 30;
+
+	// How many orphaned timespents are deleted with one statement
+	private static final int ORPHAN_CHUNK = 10000;
+
+	// All migrations in the order they have to be applied. Every migration must be
+	// safe to execute on a database that got created before the migrations existed.
+	private static final Migration[] MIGRATIONS = {
+		new Migration(1, "Creates the base tables", con -> {
+			try (Statement st = con.createStatement()) {
+				st.execute("CREATE TABLE IF NOT EXISTS `user` ("
+						+ "`id` INT AUTO_INCREMENT PRIMARY KEY,"
+						+ "`firstname` VARCHAR(64) NOT NULL,"
+						+ "`lastname` VARCHAR(64) NOT NULL,"
+						+ "`postalcode` INT NOT NULL,"
+						+ "`location` VARCHAR(64) NOT NULL,"
+						+ "`street` VARCHAR(64) NOT NULL,"
+						+ "`housenumber` VARCHAR(16) NOT NULL,"
+						+ "`telephone` VARCHAR(64) NULL,"
+						+ "`email` VARCHAR(128) NULL,"
+						+ "`rfidcode` VARCHAR(64) NULL,"
+						+ "`autodeleteaccount` TINYINT(1) NOT NULL,"
+						+ "`createdate` DATE NOT NULL,"
+						+ "UNIQUE KEY `uq_name` (`firstname`,`lastname`)"
+						+ ") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;");
+				st.execute("CREATE TABLE IF NOT EXISTS `timespent` ("
+						+ "`id` INT AUTO_INCREMENT PRIMARY KEY,"
+						+ "`start` DATETIME NOT NULL,"
+						+ "`stop` DATETIME NULL,"
+						+ "`enddisconnect` TINYINT(1) NULL DEFAULT 0,"
+						+ "`userid` INT NOT NULL"
+						+ ") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;");
+				st.execute("CREATE TABLE IF NOT EXISTS `admin` ("
+						+ "`id` INT AUTO_INCREMENT PRIMARY KEY,"
+						+ "`name` VARCHAR(64) NOT NULL,"
+						+ "`authcode` BIGINT NULL,"
+						+ "`authcodetimeout` DATETIME NULL,"
+						+ "`isfrozen` TINYINT(1) NOT NULL DEFAULT 0,"
+						+ "`email` VARCHAR(128) NOT NULL,"
+						+ "`clientrsapublic` TEXT NOT NULL,"
+						+ "`permissions` INT NOT NULL"
+						+ ") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;");
+			}
+		}),
+		new Migration(2, "Adds the indexes for the login, rfid and contact queries", con -> {
+			// Open timespent of a user (Login/Logout) and the infected user's timespents (Contacts)
+			createIndexIfMissing(con, "timespent", "idx_timespent_user_stop", false, "userid", "stop");
+			// Timespents that overlap a time range (Contacts)
+			createIndexIfMissing(con, "timespent", "idx_timespent_start_stop", false, "start", "stop");
+			// Rfid-logins (Named like the key that the registration expects on duplicates)
+			prepareUniqueRfids(con);
+			createIndexIfMissing(con, "user", "rfidcode", true, "rfidcode");
+		}),
+		new Migration(3, "Adds the last activity of the users", con -> {
+			// Adds the column
+			if (!hasColumn(con, "user", "lastactivity"))
+				try (Statement st = con.createStatement()) {
+					st.execute("ALTER TABLE `user` ADD COLUMN `lastactivity` DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP;");
+
+					// Sets the last activity from the existing timespents (Or the creation of the
+					// account if the user never logged in)
+					st.execute("UPDATE `user` u LEFT JOIN (SELECT `userid`, MAX(COALESCE(`stop`,`start`)) AS `last` FROM `timespent` GROUP BY `userid`) t ON t.`userid`=u.`id` SET u.`lastactivity`=COALESCE(t.`last`,u.`createdate`);");
+				}
+
+			// Inactive accounts (Autodelete)
+			createIndexIfMissing(con, "user", "idx_user_autodelete_activity", false, "autodeleteaccount", "lastactivity");
+		}),
+		new Migration(4, "Adds the change log of the users (Incremental user sync)", con -> {
+			try (Statement st = con.createStatement()) {
+				st.execute("CREATE TABLE IF NOT EXISTS `user_changelog` ("
+						+ "`version` BIGINT AUTO_INCREMENT PRIMARY KEY,"
+						+ "`userid` INT NOT NULL,"
+						+ "`changedate` DATETIME(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3)"
+						+ ") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;");
+
+				// Checks if the log has just been created
+				boolean empty;
+				try (ResultSet res = st.executeQuery("SELECT 1 FROM `user_changelog` LIMIT 1;")) {
+					empty = !res.next();
+				}
+
+				// Starts the log with all existing users
+				if (empty)
+					st.execute("INSERT INTO `user_changelog` (`userid`) SELECT `id` FROM `user` ORDER BY `id`;");
+			}
+
+			// Compaction of the log (Superseded changes of a user)
+			createIndexIfMissing(con, "user_changelog", "idx_user_changelog_user", false, "userid", "version");
+			// Changes that are still within the sync lag
+			createIndexIfMissing(con, "user_changelog", "idx_user_changelog_date", false, "changedate");
+		}),
+		new Migration(5, "Adds the co-presence table (Materialized contacts)", con -> {
+			try (Statement st = con.createStatement()) {
+				// Every pair of overlapping timespents, once for each side as the infected one
+				st.execute("CREATE TABLE IF NOT EXISTS `copresence` ("
+						+ "`timespentid` INT NOT NULL,"
+						+ "`contacttimespentid` INT NOT NULL,"
+						+ "`userid` INT NOT NULL,"
+						+ "`start` DATETIME NOT NULL,"
+						+ "`stop` DATETIME NOT NULL,"
+						+ "`contactid` INT NOT NULL,"
+						+ "`cstart` DATETIME NOT NULL,"
+						+ "`cstop` DATETIME NOT NULL,"
+						+ "PRIMARY KEY (`timespentid`,`contacttimespentid`)"
+						+ ") ENGINE=InnoDB DEFAULT CHARSET=utf8mb4;");
+
+				// Marks the timespents whose pairs have been written
+				if (!hasColumn(con, "timespent", "copresence"))
+					st.execute("ALTER TABLE `timespent` ADD COLUMN `copresence` TINYINT(1) NOT NULL DEFAULT 0;");
+			}
+
+			// Contacts of an infected user
+			createIndexIfMissing(con, "copresence", "idx_copresence_user_stop", false, "userid", "stop");
+			// Invalidation of an edited timespent and removal of deleted users
+			createIndexIfMissing(con, "copresence", "idx_copresence_contact_timespent", false, "contacttimespentid");
+			createIndexIfMissing(con, "copresence", "idx_copresence_contact", false, "contactid");
+			// Timespents whose pairs have not been written
+			createIndexIfMissing(con, "timespent", "idx_timespent_copresence_stop", false, "copresence", "stop");
+			// Timespents that ended recently or are still open
+			createIndexIfMissing(con, "timespent", "idx_timespent_stop", false, "stop");
+		}),
+		new Migration(6, "Installs the timespent toggle procedure", con -> {
+			// Creates the procedure once (Backends no longer recreate it on every start)
+			if (!hasRoutine(con, PLCADatabase.TOGGLE_PROCEDURE))
+				try (Statement st = con.createStatement()) {
+					st.execute(PLCADatabase.TOGGLE_PROCEDURE_BODY);
+				}
+		}),
+		new Migration(7, "Removes the timespents of users that no longer exist", con -> {
+			// The autodelete removes the timespents together with their users, so only the orphans that existed
+			// before it did have to be removed (Once, in chunks to keep the locks short)
+			try (Statement st = con.createStatement()) {
+				while (st.executeUpdate("DELETE FROM `timespent` WHERE NOT EXISTS (SELECT 1 FROM `user` WHERE `user`.`id`=`timespent`.`userid`) LIMIT " + ORPHAN_CHUNK + ";") >= ORPHAN_CHUNK)
+					;
+				st.execute("DELETE FROM `copresence` WHERE NOT EXISTS (SELECT 1 FROM `user` WHERE `user`.`id`=`copresence`.`userid`);");
+				st.execute("DELETE FROM `copresence` WHERE NOT EXISTS (SELECT 1 FROM `user` WHERE `user`.`id`=`copresence`.`contactid`);");
+			}
+		}),
+		new Migration(8, "Releases the timespents that an interrupted co-presence backfill left marked", con -> {
+			// The pairs of the existing timespents are written by the co-presence writer in chunks (Only in the
+			// copresence mode). Earlier versions of this migration wrote them at once and marked the timespents
+			// with 2 meanwhile, which the writer and the lookup do not know.
+			try (Statement st = con.createStatement()) {
+				st.execute("UPDATE `timespent` SET `copresence`=0 WHERE `copresence`=2;");
+			}
+		})
+	};
+
+	// Value that gets bound to the date parameters of the verified queries
+	private static final Timestamp SAMPLE_DATE = Timestamp.valueOf("2000-01-01 00:00:00");
+
+	// Hot queries that must be executed using an index. These are the queries that the backend executes (Not
+	// stand-ins), so a changed query gets verified as well. Parameters are bound to sample values.
+	private static final VerifiedQuery[] VERIFIED_QUERIES = {
+		// Login/Logout
+		new VerifiedQuery("timespent", PLCADatabase.SELECT_OPEN_TIMESPENT_QUERY, 0),
+		// Contact tracing mode 'sql'
+		new VerifiedQuery("i", PLCADatabase.SELECT_CONTACTS_QUERY, 15, 0, SAMPLE_DATE),
+		new VerifiedQuery("c", PLCADatabase.SELECT_CONTACTS_QUERY, 15, 0, SAMPLE_DATE),
+		// Contact tracing mode 'memory' (And the multi-hop and batch searches)
+		new VerifiedQuery("timespent", ContactTracer.SELECT_INFECTED_SESSIONS_QUERY, 0, SAMPLE_DATE),
+		new VerifiedQuery("timespent", ContactTracer.SELECT_WINDOW_QUERY, 0, SAMPLE_DATE, SAMPLE_DATE),
+		// Contact tracing mode 'copresence'
+		new VerifiedQuery("p", PLCADatabase.SELECT_COPRESENCE_QUERY, 0, SAMPLE_DATE, 15, 15, 0, SAMPLE_DATE, 15, 0, SAMPLE_DATE, 15, 0, SAMPLE_DATE),
+		new VerifiedQuery("c", PLCADatabase.SELECT_COPRESENCE_QUERY, 0, SAMPLE_DATE, 15, 15, 0, SAMPLE_DATE, 15, 0, SAMPLE_DATE, 15, 0, SAMPLE_DATE),
+		new VerifiedQuery("timespent", CopresenceWriter.SELECT_BACKLOG_QUERY, 100),
+		new VerifiedQuery("timespent", CopresenceWriter.SELECT_CANDIDATES_QUERY, SAMPLE_DATE, SAMPLE_DATE, 0),
+		// Autodelete
+		new VerifiedQuery("user", PLCADatabase.SELECT_EXPIRED_USERS_QUERY, SAMPLE_DATE, SAMPLE_DATE, SAMPLE_DATE, SAMPLE_DATE, 0, 100),
+		// Incremental user sync
+		new VerifiedQuery("user_changelog", PLCADatabase.SELECT_USER_CHANGELOG_VERSIONS_QUERY, 5000000l, 2592000000000l)
+	};
+
+	// Logger
+	private Logger log = new Logger("SchemaMigrator");
+
+	// Supplies the connection for the migration
+	private ConnectionFactory connections;
+
+	/**
+	 * @param connections
+	 *            supplies the connection for the migration (Gets closed afterwards)
+	 */
+	public SchemaMigrator(ConnectionFactory connections) {
+		this.connections = connections;
+	}
+
+	/**
+	 * Applies all migrations that have not been applied to the database and
+	 * verifies that the hot queries can use their indexes
+	 *
+	 * @throws SQLException
+	 *             if anything went wrong with the database or a migration failed
+	 */
+	public void migrate() throws SQLException {
+		try (Connection con = this.connections.open()) {
+			// Prevents other backends from migrating at the same time
+			this.acquireLock(con);
+
+			try {
+				// Ensures that the applied versions can be stored
+				try (Statement st = con.createStatement()) {
+					st.execute("CREATE TABLE IF NOT EXISTS `schema_version` (`version` INT PRIMARY KEY, `description` VARCHAR(128) NOT NULL, `appliedat` DATETIME NOT NULL) ENGINE=InnoDB;");
+				}
+
+				// Gets the current version
+				int version = this.getVersion(con);
+
+				this.log.debug("Database schema is at version " + version + " of " + MIGRATIONS[MIGRATIONS.length - 1].version);
+
+				// Applies all missing migrations
+				for (Migration m : MIGRATIONS) {
+					if (m.version <= version)
+						continue;
+
+					this.log.info("Applying schema migration " + m.version + ": " + m.description);
+
+					// Applies the migration
+					m.step.apply(con);
+
+					// Stores the version
+					try (PreparedStatement ps = con.prepareStatement(
+							"INSERT INTO `schema_version` (`version`,`description`,`appliedat`) VALUES (?,?,?);")) {
+						ps.setInt(1, m.version);
+						ps.setString(2, m.description);
+						ps.setTimestamp(3, new Timestamp(System.currentTimeMillis()));
+						ps.executeUpdate();
+					}
+				}
+			} finally {
+				this.releaseLock(con);
+			}
+
+			// Checks that the indexes are used
+			this.verifyIndexes(con);
+		}
+	}
+
+	/**
+	 * Gets the highest applied version
+	 */
+	private int getVersion(Connection con) throws SQLException {
+		try (Statement st = con.createStatement();
+				ResultSet res = st.executeQuery("SELECT MAX(`version`) FROM `schema_version`;")) {
+			return res.next() ? res.getInt(1) : 0;
+		}
+	}
+
+	/**
+	 * Executes EXPLAIN for all hot queries and logs a warning for every query that
+	 * can not use an index
+	 */
+	private void verifyIndexes(Connection con) throws SQLException {
+		for (VerifiedQuery query : VERIFIED_QUERIES) {
+			try (PreparedStatement ps = con.prepareStatement("EXPLAIN " + query.query)) {
+				// Binds the sample values
+				for (int i = 0; i < query.parameters.length; i++)
+					ps.setObject(i + 1, query.parameters[i]);
+
+				// If an index can be used for the table
+				boolean indexed = false;
+
+				try (ResultSet res = ps.executeQuery()) {
+					while (res.next()) {
+						// Gets the extra information (Lookups on a unique index that found no row
+						// are resolved before the table gets accessed)
+						String extra = res.getString("Extra");
+						if (extra != null && extra.contains("const table"))
+							indexed = true;
+
+						// Checks if the row is for the table and can use an index
+						if (query.table.equals(res.getString("table"))
+								&& (res.getString("possible_keys") != null || res.getString("key") != null))
+							indexed = true;
+					}
+				}
+
+				if (indexed)
+					this.log.debug("Query on '" + query.table + "' can use an index");
+				else
+					this.log.warn("Query on '" + query.table + "' can not use an index and will scan the table")
+							.critical(query.query);
+			}
+		}
+	}
+
+	/**
+	 * Creates the index if no index with the same columns (In the same order)
+	 * exists on the table
+	 *
+	 * @param con
+	 *            the connection to use
+	 * @param table
+	 *            the table of the index
+	 * @param name
+	 *            the name of the index (Only used if it gets created)
+	 * @param unique
+	 *            if the index is unique
+	 * @param columns
+	 *            the columns of the index
+	 * @throws SQLException
+	 *             if the index could not be created (Eg. unique index with
+	 *             duplicated values)
+	 */
+	private static void createIndexIfMissing(Connection con, String table, String name, boolean unique,
+			String... columns) throws SQLException {
+		// Gets the columns of all existing indexes
+		try (PreparedStatement ps = con.prepareStatement(
+				"SELECT `INDEX_NAME`,`NON_UNIQUE`,GROUP_CONCAT(`COLUMN_NAME` ORDER BY `SEQ_IN_INDEX`) AS `cols` FROM `information_schema`.`STATISTICS` WHERE `TABLE_SCHEMA`=DATABASE() AND `TABLE_NAME`=? GROUP BY `INDEX_NAME`,`NON_UNIQUE`;")) {
+			ps.setString(1, table);
+
+			try (ResultSet res = ps.executeQuery()) {
+				while (res.next())
+					// Checks if the index has the same columns (And is unique if required)
+					if (res.getString("cols").equalsIgnoreCase(String.join(",", columns))
+							&& (!unique || res.getInt("NON_UNIQUE") == 0))
+						return;
+			}
+		}
+
+		// Creates the index
+		try (Statement st = con.createStatement()) {
+			st.execute("CREATE " + (unique ? "UNIQUE " : "") + "INDEX `" + name + "` ON `" + table + "` ("
+					+ Arrays.stream(columns).map(c -> '`' + c + '`').collect(Collectors.joining(",")) + ");");
+		}
+	}
+
+	/**
+	 * Prepares the users for the unique rfid index. Empty rfids are replaced by
+	 * NULL (Users without an rfid). Rfids that are used by multiple users can not
+	 * be resolved automatically (Either user could own the card).
+	 *
+	 * @param con
+	 *            the connection to use
+	 * @throws SQLException
+	 *             if anything went wrong with the connection or rfids are used by
+	 *             multiple users (Lists them with the ids of their users)
+	 */
+	private static void prepareUniqueRfids(Connection con) throws SQLException {
+		try (Statement st = con.createStatement()) {
+			// Users without an rfid
+			st.execute("UPDATE `user` SET `rfidcode`=NULL WHERE `rfidcode`='';");
+
+			// Searches rfids that are used by multiple users
+			StringBuilder duplicates = new StringBuilder();
+			try (ResultSet res = st.executeQuery(
+					"SELECT `rfidcode`,GROUP_CONCAT(`id` ORDER BY `id`) AS `ids` FROM `user` WHERE `rfidcode` IS NOT NULL GROUP BY `rfidcode` HAVING COUNT(*) > 1 ORDER BY `rfidcode`;")) {
+				while (res.next())
+					duplicates.append("; '").append(res.getString("rfidcode")).append("' (Users ")
+							.append(res.getString("ids")).append(")");
+			}
+
+			if (duplicates.length() > 0)
+				throw new SQLException("The unique rfid index can not be added, because rfids are used by multiple users. "
+						+ "Remove or change them and restart: " + duplicates.substring(2));
+		}
+	}
+
+	/**
+	 * @return if the table has the column
+	 */
+	private static boolean hasColumn(Connection con, String table, String column) throws SQLException {
+		try (PreparedStatement ps = con.prepareStatement(
+				"SELECT 1 FROM `information_schema`.`COLUMNS` WHERE `TABLE_SCHEMA`=DATABASE() AND `TABLE_NAME`=? AND `COLUMN_NAME`=?;")) {
+			ps.setString(1, table);
+			ps.setString(2, column);
+
+			try (ResultSet res = ps.executeQuery()) {
+				return res.next();
+			}
+		}
+	}
+
+	/**
+	 * @return if the database has the stored procedure
+	 */
+	private static boolean hasRoutine(Connection con, String name) throws SQLException {
+		try (PreparedStatement ps = con.prepareStatement(
+				"SELECT 1 FROM `information_schema`.`ROUTINES` WHERE `ROUTINE_SCHEMA`=DATABASE() AND `ROUTINE_NAME`=?;")) {
+			ps.setString(1, name);
+
+			try (ResultSet res = ps.executeQuery()) {
+				return res.next();
+			}
+		}
+	}
+
+	/**
+	 * Waits for the migration lock
+	 *
+	 * @throws SQLException
+	 *             if the lock could not be acquired in time
+	 */
+	private void acquireLock(Connection con) throws SQLException {
+		if (!getLock(con, LOCK_NAME, LOCK_TIMEOUT))
+			throw new SQLException("Timed out while waiting for another backend to finish the schema migration");
+	}
+
+	/**
+	 * Releases the migration lock
+	 */
+	private void releaseLock(Connection con) throws SQLException {
+		releaseLock(con, LOCK_NAME);
+	}
+
+	/**
+	 * Waits for the named lock of the database (Shared by all backends, held by
+	 * the connection's session until it gets released)
+	 *
+	 * @param timeout
+	 *            how many seconds to wait for the lock
+	 * @return if the lock got acquired in time
+	 * @throws SQLException
+	 *             if anything went wrong with the connection
+	 */
+	static boolean getLock(Connection con, String name, int timeout) throws SQLException {
+		try (PreparedStatement ps = con.prepareStatement("SELECT GET_LOCK(?,?);")) {
+			ps.setString(1, name);
+			ps.setInt(2, timeout);
+
+			try (ResultSet res = ps.executeQuery()) {
+				return res.next() && res.getInt(1) == 1;
+			}
+		}
+	}
+
+	/**
+	 * Releases the named lock of the database
+	 *
+	 * @throws SQLException
+	 *             if anything went wrong with the connection
+	 */
+	static void releaseLock(Connection con, String name) throws SQLException {
+		try (PreparedStatement ps = con.prepareStatement("SELECT RELEASE_LOCK(?);")) {
+			ps.setString(1, name);
+			ps.execute();
+		}
+	}
+
+	@FunctionalInterface
+	private interface MigrationStep {
+		public void apply(Connection con) throws SQLException;
+	}
+
+	private static class Migration {
+
+		// Version that the schema has after the migration
+		public final int version;
+
+		// What the migration changes
+		public final String description;
+
+		// Applies the migration
+		public final MigrationStep step;
+
+		public Migration(int version, String description, MigrationStep step) {
+			this.version = version;
+			this.description = description;
+			this.step = step;
+		}
+	}
+
+	private static class VerifiedQuery {
+
+		// Alias of the table that has to use an index
+		public final String table;
+
+		// The query and the sample values of its parameters
+		public final String query;
+		public final Object[] parameters;
+
+		public VerifiedQuery(String table, String query, Object... parameters) {
+			this.table = table;
+			this.query = query;
+			this.parameters = parameters;
+		}
+	}
+}
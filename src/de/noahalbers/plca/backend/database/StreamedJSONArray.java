@@ -0,0 +1,128 @@
+package de.noahalbers.plca.backend.database;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONString;
+
+import de.noahalbers.plca.backend.database.exceptions.EntityLoadException;
+import de.noahalbers.plca.backend.database.exceptions.EntitySaveException;
+
+/**
+ * Json-array value that converts the rows of a result set while it gets
+ * written. Must be closed afterwards (Closing releases the statement, which is
+ * required before the connection can be used again).
+ * 
+ * The rows are only streamed (Without holding the whole result in memory) if
+ * the array gets written using {@link #write(Writer)}, which the chunked
+ * responses do. Every other serialization (Eg. {@link JSONObject#toString()} or
+ * the single-frame responses) uses {@link #toJSONString()}, which reads all rows
+ * into a string once and reuses it afterwards.
+ */
+public class StreamedJSONArray implements JSONString, AutoCloseable {
+
+	// The statement and result set that the rows get read from
+	private Statement statement;
+	private ResultSet result;
+
+	// Converts a row into json
+	private RowConverter converter;
+
+	// If the rows have been read
+	private boolean consumed;
+
+	// The rows as json once they got read by toJSONString
+	private String buffered;
+
+	/**
+	 * @param statement
+	 *            the statement of the result (Gets closed with the array)
+	 * @param result
+	 *            the result with the rows
+	 * @param converter
+	 *            converts a row into json
+	 */
+	public StreamedJSONArray(Statement statement, ResultSet result, RowConverter converter) {
+		this.statement = statement;
+		this.result = result;
+		this.converter = converter;
+	}
+
+	/**
+	 * Writes the array while reading the rows
+	 * 
+	 * @param writer
+	 *            the writer to write the array to
+	 * @return the writer
+	 * @throws JSONException
+	 *             if the rows could not be read or written or have already been
+	 *             streamed
+	 */
+	public Writer write(Writer writer) throws JSONException {
+		try {
+			// Checks if the rows have already been read into a string
+			if (this.buffered != null) {
+				writer.write(this.buffered);
+				return writer;
+			}
+
+			// Checks if the rows have already been streamed
+			if (this.consumed)
+				throw new JSONException("Streamed array has already been written");
+			this.consumed = true;
+
+			writer.write('[');
+
+			// Writes all rows
+			boolean first = true;
+			while (this.result.next()) {
+				if (!first)
+					writer.write(',');
+				first = false;
+
+				this.converter.convert(this.result).write(writer);
+			}
+
+			writer.write(']');
+			return writer;
+		} catch (IOException e) {
+			throw new JSONException(e);
+		} catch (SQLException | EntityLoadException | EntitySaveException e) {
+			throw new JSONException("Failed to read the next row", e);
+		}
+	}
+
+	/**
+	 * Reads all rows into a string (Once, afterwards the string gets reused)
+	 * 
+	 * @throws JSONException
+	 *             if the rows could not be read or have already been streamed
+	 */
+	@Override
+	public String toJSONString() {
+		if (this.buffered == null)
+			this.buffered = this.write(new StringWriter()).toString();
+		return this.buffered;
+	}
+
+	@Override
+	public String toString() {
+		return this.toJSONString();
+	}
+
+	@Override
+	public void close() throws SQLException {
+		this.statement.close();
+	}
+
+	@FunctionalInterface
+	public interface RowConverter {
+		public JSONObject convert(ResultSet row) throws SQLException, EntityLoadException, EntitySaveException;
+	}
+}
@@ -0,0 +1,10 @@
+package de.noahalbers.plca.backend.database;
+
+public enum TimespentToggle {
+
+	USER_NOT_FOUND,		// No user with the given id or rfid exists
+	LOGGED_IN,			// A new timespent got opened for the user
+	LOGGED_OUT,			// The open timespent of the user got closed
+	REJECTED;			// The user exists but is not in a state that allows the requested toggle
+	
+}
@@ -0,0 +1,387 @@
+package de.noahalbers.plca.backend.database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import de.noahalbers.plca.backend.database.ConnectionPool.ConnectionFactory;
+import de.noahalbers.plca.backend.logger.Logger;
+import de.noahalbers.plca.backend.util.Nullable;
+
+public class TimespentWriter extends Thread {
+
+	// Logger
+	private Logger log = new Logger("TimespentWriter");
+
+	// Supplies the connection for each flush
+	private ConnectionFactory connections;
+
+	// Toggles that are waiting to be written
+	private BlockingQueue<Toggle> queue = new LinkedBlockingQueue<>();
+
+	// How many millis to wait for more toggles after the first one got received
+	private long delay;
+
+	// How many toggles are written at most with one flush
+	private int maxBatch;
+
+	// How many millis a toggle waits for its batch to be written
+	private long timeout;
+
+	// If the writer has stopped (Toggles can no longer be written)
+	private volatile boolean stopped;
+
+	/**
+	 * @param connections
+	 *            supplies the connection for each flush (Gets closed afterwards)
+	 * @param delay
+	 *            how many millis to wait for more toggles after the first one got
+	 *            received
+	 * @param maxBatch
+	 *            how many toggles are written at most with one flush
+	 * @param timeout
+	 *            how many millis a toggle waits for its batch to be written
+	 */
+	public TimespentWriter(ConnectionFactory connections, long delay, int maxBatch, long timeout) {
+		super("PLCA-TimespentWriter");
+		this.setDaemon(true);
+		this.connections = connections;
+		this.delay = delay;
+		this.maxBatch = Math.max(1, maxBatch);
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Queues a toggle and waits until it got committed to the database
+	 *
+	 * @param userId
+	 *            the id of the user; only used if no rfid is given
+	 * @param rfid
+	 *            {@link Nullable} the rfid of the user
+	 * @param allowLogin
+	 *            if the user can be logged in (If he has no open timespent)
+	 * @param allowLogout
+	 *            if the user can be logged out (If he has an open timespent)
+	 * @return the state of the user after the toggle
+	 * @throws SQLException
+	 *             if the batch with the toggle could not be written, the writer has
+	 *             stopped or the batch did not get written in time (The toggle can
+	 *             still be written afterwards)
+	 */
+	public TimespentToggle toggle(int userId, @Nullable String rfid, boolean allowLogin, boolean allowLogout)
+			throws SQLException {
+		// Queues the toggle
+		Toggle t = new Toggle(userId, rfid, allowLogin, allowLogout);
+		this.queue.add(t);
+
+		// Fails the toggle if the writer stopped before it could take it
+		if (this.stopped)
+			this.failQueued();
+
+		try {
+			// Waits for the acknowledgement
+			return t.result.get(this.timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for the timespent to be written");
+		} catch (TimeoutException e) {
+			throw new SQLException("Timed out while waiting for the timespent to be written");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof SQLException)
+				throw (SQLException) e.getCause();
+			throw new SQLException(e.getCause());
+		}
+	}
+
+	@Override
+	public void run() {
+		this.log.info("Started timespent writer");
+
+		// The toggles of the next flush
+		List<Toggle> batch = new ArrayList<>();
+
+		try {
+			this.writeBatches(batch);
+		} finally {
+			this.log.info("Stopped timespent writer");
+
+			// Fails the toggles that will not be written anymore
+			this.stopped = true;
+			for (Toggle t : batch)
+				t.result.completeExceptionally(new SQLException("The timespent writer has stopped"));
+			this.failQueued();
+		}
+	}
+
+	/**
+	 * Collects and writes the batches until the writer gets interrupted
+	 *
+	 * @param batch
+	 *            the list that collects the toggles of the next flush
+	 */
+	private void writeBatches(List<Toggle> batch) {
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				// Waits for the first toggle
+				batch.add(this.queue.take());
+
+				// Collects more toggles until the delay is over or the batch is full
+				long deadline = System.currentTimeMillis() + this.delay;
+				while (batch.size() < this.maxBatch) {
+					// Takes all toggles that are already waiting
+					if (this.queue.drainTo(batch, this.maxBatch - batch.size()) > 0)
+						continue;
+
+					long wait = deadline - System.currentTimeMillis();
+					if (wait <= 0)
+						break;
+
+					// Waits for the next toggle
+					Toggle next = this.queue.poll(wait, TimeUnit.MILLISECONDS);
+					if (next == null)
+						break;
+					batch.add(next);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+			// Writes the batch
+			if (!batch.isEmpty())
+				this.flush(batch);
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Fails all toggles that are waiting in the queue
+	 */
+	private void failQueued() {
+		Toggle t;
+		while ((t = this.queue.poll()) != null)
+			t.result.completeExceptionally(new SQLException("The timespent writer has stopped"));
+	}
+
+	/**
+	 * Writes all toggles within one transaction and acknowledges them once they
+	 * got committed
+	 */
+	private void flush(List<Toggle> batch) {
+		try (Connection con = this.connections.open()) {
+			con.setAutoCommit(false);
+
+			try {
+				// Executes the toggles
+				this.write(con, batch);
+				con.commit();
+			} catch (Throwable e) {
+				con.rollback();
+				throw e;
+			} finally {
+				con.setAutoCommit(true);
+			}
+		} catch (Throwable e) {
+			// Also catches errors, a toggle that never completes would block its request forever
+			this.log.warn("Failed to write " + batch.size() + " timespent toggles").critical(e);
+
+			// Passes the error to all waiting requests
+			for (Toggle t : batch)
+				t.result.completeExceptionally(e);
+			return;
+		}
+
+		// Acknowledges all toggles
+		for (Toggle t : batch)
+			t.result.complete(t.state);
+	}
+
+	/**
+	 * Locks the users of the toggles, loads their open timespents and writes all
+	 * resulting inserts and updates as batches. Sets the state of every toggle.
+	 */
+	private void write(Connection con, List<Toggle> batch) throws SQLException {
+		// Ids and rfids of the users
+		List<Integer> ids = new ArrayList<>();
+		List<String> rfids = new ArrayList<>();
+		for (Toggle t : batch)
+			if (t.rfid == null)
+				ids.add(t.userId);
+			else
+				rfids.add(t.rfid);
+
+		// Existing users (Rfid -> Id) and their ids
+		Map<String, Integer> usersByRfid = new HashMap<>();
+		Set<Integer> users = new HashSet<>();
+
+		// Locks and loads the users (Same lock order as the toggle procedure)
+		String query = "SELECT `id`,`rfidcode` FROM `user` WHERE "
+				+ (ids.isEmpty() ? "" : "`id` IN (" + PLCADatabase.placeholders(ids.size()) + ")")
+				+ (ids.isEmpty() || rfids.isEmpty() ? "" : " OR ")
+				+ (rfids.isEmpty() ? "" : "`rfidcode` IN (" + PLCADatabase.placeholders(rfids.size()) + ")") + " FOR UPDATE;";
+		try (PreparedStatement ps = con.prepareStatement(query)) {
+			// Inserts the values
+			int i = 1;
+			for (int id : ids)
+				ps.setInt(i++, id);
+			for (String rfid : rfids)
+				ps.setString(i++, rfid);
+
+			try (ResultSet res = ps.executeQuery()) {
+				while (res.next()) {
+					users.add(res.getInt(1));
+					if (res.getString(2) != null)
+						usersByRfid.put(res.getString(2), res.getInt(1));
+				}
+			}
+		}
+
+		// Open timespent of each user (User-id -> Timespent-id or the pending insert)
+		Map<Integer, Object> open = new HashMap<>();
+
+		// Loads the open timespents
+		if (!users.isEmpty()) {
+			try (PreparedStatement ps = con.prepareStatement("SELECT `id`,`userid` FROM `timespent` WHERE `stop` IS NULL AND `userid` IN ("
+					+ PLCADatabase.placeholders(users.size()) + ");")) {
+				int i = 1;
+				for (int user : users)
+					ps.setInt(i++, user);
+
+				try (ResultSet res = ps.executeQuery()) {
+					while (res.next())
+						open.put(res.getInt(2), res.getInt(1));
+				}
+			}
+		}
+
+		// Rows that have to be inserted and updated
+		List<PendingInsert> inserts = new ArrayList<>();
+		Map<Integer, Timestamp> updates = new HashMap<>();
+
+		// Last activity of the toggled users
+		Map<Integer, Timestamp> activities = new HashMap<>();
+
+		// Applies the toggles in the order they got requested
+		for (Toggle t : batch) {
+			// Gets the user
+			Integer user = t.rfid == null ? (users.contains(t.userId) ? t.userId : null) : usersByRfid.get(t.rfid);
+			if (user == null) {
+				t.state = TimespentToggle.USER_NOT_FOUND;
+				continue;
+			}
+
+			// Gets the open timespent
+			Object ts = open.get(user);
+
+			if (ts == null && t.allowLogin) {
+				// Opens a new timespent
+				PendingInsert ins = new PendingInsert(user, t.time);
+				inserts.add(ins);
+				open.put(user, ins);
+				activities.put(user, t.time);
+				t.state = TimespentToggle.LOGGED_IN;
+			} else if (ts != null && t.allowLogout) {
+				// Closes the timespent (Either the pending insert or the existing row)
+				if (ts instanceof PendingInsert)
+					((PendingInsert) ts).stop = t.time;
+				else
+					updates.put((Integer) ts, t.time);
+				open.remove(user);
+				activities.put(user, t.time);
+				t.state = TimespentToggle.LOGGED_OUT;
+			} else
+				t.state = TimespentToggle.REJECTED;
+		}
+
+		// Inserts the new timespents
+		if (!inserts.isEmpty())
+			try (PreparedStatement ps = con.prepareStatement(
+					"INSERT INTO `timespent` (`start`,`stop`,`enddisconnect`,`userid`) VALUES (?,?,0,?)")) {
+				for (PendingInsert ins : inserts) {
+					ps.setTimestamp(1, ins.start);
+					ps.setTimestamp(2, ins.stop);
+					ps.setInt(3, ins.userId);
+					ps.addBatch();
+				}
+				ps.executeBatch();
+			}
+
+		// Closes the existing timespents
+		if (!updates.isEmpty())
+			try (PreparedStatement ps = con
+					.prepareStatement("UPDATE `timespent` SET `stop`=?,`enddisconnect`=0 WHERE `id`=?")) {
+				for (Map.Entry<Integer, Timestamp> upd : updates.entrySet()) {
+					ps.setTimestamp(1, upd.getValue());
+					ps.setInt(2, upd.getKey());
+					ps.addBatch();
+				}
+				ps.executeBatch();
+			}
+
+		// Updates the last activity of the users
+		if (!activities.isEmpty())
+			try (PreparedStatement ps = con
+					.prepareStatement("UPDATE `user` SET `lastactivity`=GREATEST(`lastactivity`,?) WHERE `id`=?")) {
+				for (Map.Entry<Integer, Timestamp> act : activities.entrySet()) {
+					ps.setTimestamp(1, act.getValue());
+					ps.setInt(2, act.getKey());
+					ps.addBatch();
+				}
+				ps.executeBatch();
+			}
+	}
+
+	private static class Toggle {
+
+		// Requested values
+		public final int userId;
+		@Nullable
+		public final String rfid;
+		public final boolean allowLogin, allowLogout;
+
+		// Time at which the toggle got requested
+		public final Timestamp time = new Timestamp(System.currentTimeMillis());
+
+		// State after the toggle got applied (Set by the writer)
+		public TimespentToggle state;
+
+		// Completes once the toggle got committed
+		public final CompletableFuture<TimespentToggle> result = new CompletableFuture<>();
+
+		public Toggle(int userId, @Nullable String rfid, boolean allowLogin, boolean allowLogout) {
+			this.userId = userId;
+			this.rfid = rfid;
+			this.allowLogin = allowLogin;
+			this.allowLogout = allowLogout;
+		}
+	}
+
+	private static class PendingInsert {
+
+		// The user of the timespent
+		public final int userId;
+
+		// Start and (If the user got logged out in the same batch) stop of the timespent
+		public final Timestamp start;
+		@Nullable
+		public Timestamp stop;
+
+		public PendingInsert(int userId, Timestamp start) {
+			this.userId = userId;
+			this.start = start;
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package de.noahalbers.plca.backend.database;
+
+import java.util.List;
+
+import de.noahalbers.plca.backend.database.entitys.SimpleUserEntity;
+
+public class UserChanges {
+
+	// Version that the client has to send with its next sync
+	public final long version;
+
+	// If the client has to replace its whole list (Instead of applying the changes)
+	public final boolean full;
+
+	// Users that got created or updated (Simple profiles)
+	public final List<SimpleUserEntity> users;
+
+	// Ids of the users that got deleted
+	public final List<Integer> deleted;
+
+	public UserChanges(long version, boolean full, List<SimpleUserEntity> users, List<Integer> deleted) {
+		this.version = version;
+		this.full = full;
+		this.users = users;
+		this.deleted = deleted;
+	}
+}
@@ -5,6 +5,8 @@ import java.net.ServerSocket;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 import de.noahalbers.plca.backend.util.Nullable;
 
@@ -18,28 +20,55 @@ import de.noahalbers.plca.backend.server.reqeusts.handlers.LoginRequest;
 import de.noahalbers.plca.backend.server.reqeusts.handlers.LogoutAllRequest;
 import de.noahalbers.plca.backend.server.reqeusts.handlers.LogoutRequest;
 import de.noahalbers.plca.backend.server.reqeusts.handlers.RegisterUserRequest;
+import de.noahalbers.plca.backend.server.reqeusts.handlers.SyncUsersRequest;
 import de.noahalbers.plca.backend.server.reqeusts.handlers.admin.AdminAuthcodeRequest;
+import de.noahalbers.plca.backend.server.reqeusts.handlers.admin.AdminBatchContactsRequest;
+import de.noahalbers.plca.backend.server.reqeusts.handlers.admin.AdminContactHopsRequest;
 import de.noahalbers.plca.backend.server.reqeusts.handlers.admin.AdminEditUserReqeust;
 import de.noahalbers.plca.backend.server.reqeusts.handlers.admin.AdminFreezeSelfRequest;
 import de.noahalbers.plca.backend.server.reqeusts.handlers.admin.AdminGetProfileRequest;
 import de.noahalbers.plca.backend.server.reqeusts.handlers.admin.AdminGrabUserRequest;
 import de.noahalbers.plca.backend.server.reqeusts.handlers.admin.AdminInfectedContactsRequest;
 import de.noahalbers.plca.backend.server.socket.PLCAConnection;
+import de.noahalbers.plca.backend.server.socket.PublicKeyCache;
+import de.noahalbers.plca.backend.server.socket.SessionTicketCache;
+import de.noahalbers.plca.backend.server.socket.nio.PLCASelectorServer;
 
 public class PLCAServer extends Thread{
 
+	// All modes that the server can run in
+	public static final String
+			MODE_THREAD = "thread",		// Every connection gets its own thread
+			MODE_VIRTUAL = "virtual",	// Every connection gets its own virtual thread (Requires java 21+)
+			MODE_NIO = "nio";			// Few selector threads handle all connections and pass the work to a bounded worker pool
+
 	// Reference to the main app
 	private PLCA plca = PLCA.getInstance();
 	
 	// Logger
 	private Logger log = new Logger("PLCA-Server");
 	
-	// Server listener
+	// Server listener (Thread- and virtual-mode only)
+	@Nullable
 	private ServerSocket listener;
 	
+	// Executes the accepted connections (Thread- and virtual-mode only)
+	@Nullable
+	private Executor connectionExecutor;
+	
+	// Selector based server (Nio-mode only)
+	@Nullable
+	private PLCASelectorServer selectorServer;
+	
 	// Generator for the connection id
 	private Random random = new Random();
 	
+	// Tickets that let clients resume a connection without the rsa-handshake
+	private SessionTicketCache ticketCache;
+	
+	// Parsed rsa-public-keys of the covid-login and the admins
+	private PublicKeyCache keyCache;
+	
 	// Registers all request-handlers
 	@SuppressWarnings("serial")
 	private Map<Integer/*Id*/,RequestHandler> handlers = new HashMap<Integer/*Id*/,RequestHandler>()
@@ -58,16 +87,52 @@ public class PLCAServer extends Thread{
 		put(11,new AdminGetProfileRequest());
 		put(12,new AdminGrabUserRequest());
 		put(13,new AdminInfectedContactsRequest());
+		put(14,new SyncUsersRequest());
+		put(15,new AdminContactHopsRequest());
+		put(16,new AdminBatchContactsRequest());
 	}};
 	
 	public PLCAServer() throws IOException {
-		this.listener = new ServerSocket(this.plca.getConfig().getUnsafe("port"));
+		// Gets the port and mode
+		int port = this.plca.getConfig().getUnsafe("port");
+		String mode = this.plca.getConfig().getUnsafe("server_mode");
+		
+		// Creates the ticket cache
+		this.ticketCache = new SessionTicketCache(
+			this.plca.getConfig().getUnsafe("session_ticket_lifetime"),
+			this.plca.getConfig().getUnsafe("session_ticket_cache_size")
+		);
+		
+		// Creates the key cache
+		this.keyCache = new PublicKeyCache(this.plca.getConfig().getUnsafe("applogin_pubK"));
+		
+		switch(mode) {
+			case MODE_THREAD:
+				this.listener = new ServerSocket(port);
+				this.connectionExecutor = r->new Thread(r).start();
+				break;
+			case MODE_VIRTUAL:
+				this.connectionExecutor = this.createVirtualThreadExecutor();
+				this.listener = new ServerSocket(port);
+				break;
+			case MODE_NIO:
+				this.selectorServer = new PLCASelectorServer(port);
+				break;
+			default:
+				throw new IOException("Unknown server mode: "+mode);
+		}
 	}
 	
 	@Override
 	public void interrupt() {
 		this.log.debug("Stopping server (Interrupting Thread)");
 		
+		// Stops the selector server
+		if(this.selectorServer != null) {
+			this.selectorServer.close();
+			return;
+		}
+		
 		// Stops the server
 		try {
 			this.listener.close();
@@ -79,6 +144,12 @@ public class PLCAServer extends Thread{
 		
 		this.log.debug("Starting server");
 		
+		// Checks if the selector server handles the connections
+		if(this.selectorServer != null) {
+			this.selectorServer.run();
+			return;
+		}
+		
 		// Waits for connections
 		while(!this.isInterrupted()) {
 			try {
@@ -86,16 +157,49 @@ public class PLCAServer extends Thread{
 				long cid = this.random.nextLong();
 				
 				// Creates the connection
-				new PLCAConnection(cid,this.listener.accept(), x->{}).start();
+				this.connectionExecutor.execute(new PLCAConnection(cid,this.listener.accept(), x->{}));
 			} catch (Exception e) {
 				this.log.error("Error with a connection").critical(e);
 			}
 		}
 	}
 	
+	/**
+	 * Creates an executor that starts a new virtual thread for every connection.
+	 * Gets loaded dynamically as the program can still be compiled for older java-versions.
+	 * 
+	 * @throws IOException if the runtime does not support virtual threads
+	 */
+	private Executor createVirtualThreadExecutor() throws IOException {
+		try {
+			return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			throw new IOException("Virtual threads are not supported by this runtime (Requires java 21+)", e);
+		}
+	}
+	
 	@Nullable
 	public RequestHandler getHandlerById(int id) {
 		return this.handlers.getOrDefault(id, null);
 	}
 	
+	public SessionTicketCache getTicketCache() {
+		return this.ticketCache;
+	}
+	
+	public PublicKeyCache getKeyCache() {
+		return this.keyCache;
+	}
+	
+	/**
+	 * Removes all cached information of the admin (Session tickets and the parsed key).
+	 * Has to be called once the admin got updated or frozen.
+	 * 
+	 * @param adminId the id of the admin
+	 */
+	public void invalidateAdmin(int adminId) {
+		this.ticketCache.invalidateAdmin(adminId);
+		this.keyCache.invalidateAdmin(adminId);
+	}
+	
 }
@@ -21,7 +21,7 @@ public class Request {
 	// Control funtions for the socket
 	private PacketSender doSend;
 	private PacketReceiver doReceive;
-	// A database connection that can be reused
+	// The database connection of the request (Acquired once it is first required and reused for the whole request)
 	private @Nullable Connection dbConnection;
 	// The requesting admin, in found
 	private @Nullable AdminEntity admin;
@@ -168,16 +168,18 @@ public class Request {
 	}
 
 	/**
-	 * Reuses or starts a new database connection
+	 * Gets the database connection of the request. The connection gets acquired
+	 * once it is first required, is reused for all further calls and gets
+	 * returned once the request is done. It must not be closed by the handler.
 	 * 
-	 * @return
+	 * @return the connection of the request
 	 * @throws SQLException
 	 *             if the connection failed to start
 	 */
 	public Connection startDatabaseConnection() throws SQLException {
 		// Checks if no connection is currently open
-		if (this.dbConnection == null)
-			return this.plca.getDatabase().startConnection();
+		if (this.dbConnection == null || this.dbConnection.isClosed())
+			this.dbConnection = this.plca.getDatabase().startConnection();
 		return this.dbConnection;
 	}
 
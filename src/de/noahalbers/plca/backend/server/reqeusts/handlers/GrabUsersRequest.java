@@ -5,10 +5,7 @@ import java.sql.SQLException;
 
 import org.json.JSONObject;
 
-import com.mysql.cj.xdevapi.JsonArray;
-
-import de.noahalbers.plca.backend.database.entitys.SimpleUserEntity;
-import de.noahalbers.plca.backend.database.exceptions.EntitySaveException;
+import de.noahalbers.plca.backend.database.StreamedJSONArray;
 import de.noahalbers.plca.backend.server.reqeusts.Request;
 import de.noahalbers.plca.backend.server.reqeusts.RequestHandler;
 import de.noahalbers.plca.backend.server.reqeusts.checks.PermissionCheck;
@@ -27,38 +24,37 @@ public class GrabUsersRequest extends RequestHandler{
 	 * 	
 	 * Request: Empty
 	 * 
+	 * The users are only streamed with protocol version 3 (Chunked responses),
+	 * so that the memory does not grow with the number of users. With older
+	 * protocol versions the whole list gets read into memory and the response
+	 * has to fit into a single frame.
 	 */
 	
 	@Override
 	public void execute(Request request) throws IOException {
+		// Grabs all user profiles (Simple profiles). The users are read from the database while the response is send.
+		StreamedJSONArray users;
+		try {
+			users = this.database.streamSimpleUsers(request.startDatabaseConnection());
+		} catch (SQLException e) {
+			this.sendErrorDatabase(request,e);
+			return;
+		}
+		
 		try {
-			// Grabs all user profiles (Simple profiles)
-			SimpleUserEntity[] dbUsers = this.database.getSimpleUsers(request.startDatabaseConnection());
-			
-			// Will hold all users
-			JSONObject jsonUsers = new JSONObject() {{
-				this.put("users", new JsonArray());
-			}};
-
-			// Appends all users to the list
-			for(SimpleUserEntity u : dbUsers) {
-				// Converts the user to json
-				JSONObject o = new JSONObject();
-				u.save(o, SimpleUserEntity.ATTRIBUTE_LIST);
-
-				// Appends the user
-				jsonUsers.append("users",o);
-			}
-			
 			// Sends back all found users
-			request.sendResponse(jsonUsers);
+			request.sendResponse(new JSONObject() {{
+				this.put("users", users);
+			}});
 
 			request.logger.debug("Successfully finished request");
-			
-		} catch (SQLException e) {
-			this.sendErrorDatabase(request,e);
-		} catch (EntitySaveException e) {
-			this.sendErrorUnknownException(request, e);
+		} finally {
+			// Releases the statement (The response has already been send, so a failure is only logged)
+			try {
+				users.close();
+			} catch (SQLException e) {
+				request.logger.warn("Failed to close the user stream").critical(e);
+			}
 		}
 	}
 
@@ -2,14 +2,10 @@ package de.noahalbers.plca.backend.server.reqeusts.handlers;
 
 import java.io.IOException;
 import java.sql.SQLException;
-import java.sql.Timestamp;
-import java.util.Map.Entry;
 
 import org.json.JSONObject;
 
-import de.noahalbers.plca.backend.database.entitys.SimpleUserEntity;
-import de.noahalbers.plca.backend.database.entitys.TimespentEntity;
-import de.noahalbers.plca.backend.database.exceptions.EntitySaveException;
+import de.noahalbers.plca.backend.database.TimespentToggle;
 import de.noahalbers.plca.backend.server.reqeusts.Request;
 import de.noahalbers.plca.backend.server.reqeusts.RequestHandler;
 import de.noahalbers.plca.backend.server.reqeusts.checks.PermissionCheck;
@@ -50,11 +46,11 @@ public class LoginRFIDRequest extends RequestHandler{
 		}
 		
 		try {
-			// Tries to get the user and timespent
-			Entry<SimpleUserEntity, TimespentEntity> res = this.database.getSimpleUserByRFID(rfid, request.startDatabaseConnection());
+			// Logs the user in or out
+			TimespentToggle result = this.database.toggleTimespent(request::startDatabaseConnection, 0, rfid, true, true);
 			
 			// Checks if the user could not be found
-			if(res.getKey() == null) {
+			if(result == TimespentToggle.USER_NOT_FOUND) {
 				request.logger
 				.debug("User not found")
 				.critical("RFID="+rfid);
@@ -62,48 +58,18 @@ public class LoginRFIDRequest extends RequestHandler{
 				return;
 			}
 			
-			// Checks if there is no open timespent on the database
-			if(res.getValue() == null) {
-				// Creates a new timespent
-				TimespentEntity ts = new TimespentEntity() {{
-					startTime=new Timestamp(System.currentTimeMillis());
-					userId=res.getKey().id;
-				}};
-				
-				// Inserts the new timespent into the database
-				this.database.createTimespent(request.startDatabaseConnection(), ts);
-				
-				// Sends the response (Logged in)
-				request.sendResponse(new JSONObject() {{
-					put("status", true);
-				}});
-				
-				request.logger.debug("Successfully finished request: login");
-				
-			}else {
-				// Gets the timespent
-				TimespentEntity ts = res.getValue();
-				
-				// Updates the values
-				ts.stopTime = new Timestamp(System.currentTimeMillis());
-				ts.gotDisconnected=false;
-				
-				// Updates the timespent
-				this.database.updateTimespent(request.startDatabaseConnection(), ts);
-
-				// Sends the response (Logged out)
-				request.sendResponse(new JSONObject() {{
-					put("status", false);
-				}});
-				
-				request.logger.debug("Successfully finished request: logout");
-			}
+			// Gets if the user got logged in
+			boolean loggedIn = result == TimespentToggle.LOGGED_IN;
+			
+			// Sends the response (Logged in or out)
+			request.sendResponse(new JSONObject() {{
+				put("status", loggedIn);
+			}});
 			
+			request.logger.debug("Successfully finished request: "+(loggedIn ? "login" : "logout"));
 			
 		} catch (SQLException e) {
 			this.sendErrorDatabase(request, e);
-		}catch(EntitySaveException e) {
-			this.sendErrorUnknownException(request, e);
 		}
 	}
 
@@ -2,13 +2,10 @@ package de.noahalbers.plca.backend.server.reqeusts.handlers;
 
 import java.io.IOException;
 import java.sql.SQLException;
-import java.sql.Timestamp;
-import java.util.Optional;
 
 import org.json.JSONObject;
 
-import de.noahalbers.plca.backend.database.entitys.TimespentEntity;
-import de.noahalbers.plca.backend.database.exceptions.EntitySaveException;
+import de.noahalbers.plca.backend.database.TimespentToggle;
 import de.noahalbers.plca.backend.server.reqeusts.Request;
 import de.noahalbers.plca.backend.server.reqeusts.RequestHandler;
 import de.noahalbers.plca.backend.server.reqeusts.checks.PermissionCheck;
@@ -51,8 +48,11 @@ public class LoginRequest extends RequestHandler{
 			// Gets the id as an int
 			int idInt = uid.intValue();
 			
+			// Tries to log the user in
+			TimespentToggle result = this.database.toggleTimespent(request::startDatabaseConnection, idInt, null, true, false);
+			
 			// Checks if the user exists
-			if(!this.database.doesUserExists(request.startDatabaseConnection(), idInt)) {
+			if(result == TimespentToggle.USER_NOT_FOUND) {
 				// Log
 				request.logger
 				.debug("User not found.")
@@ -62,11 +62,8 @@ public class LoginRequest extends RequestHandler{
 				return;
 			}
 			
-			// Tries to get the last open entity
-			Optional<TimespentEntity> optEnt = this.database.getLastOpenTimespent(request.startDatabaseConnection(), idInt);
-			
 			// Checks if the user is still logged in
-			if(optEnt.isPresent()) {
+			if(result == TimespentToggle.REJECTED) {
 				// Log
 				request.logger
 				.debug("Invalid request, user is still logged in.")
@@ -76,16 +73,6 @@ public class LoginRequest extends RequestHandler{
 				return;
 			}
 			
-			// Creates a new timespent entity
-			TimespentEntity ts = new TimespentEntity() {{
-				this.startTime=new Timestamp(System.currentTimeMillis());
-				this.userId=idInt;
-				this.gotDisconnected=false;
-			}};
-
-			// Saves the timespent into the database
-			this.database.createTimespent(request.startDatabaseConnection(), ts);
-						
 			// Sends the successful login
 			request.sendResponse(new JSONObject());
 			
@@ -95,9 +82,6 @@ public class LoginRequest extends RequestHandler{
 			
 		} catch(SQLException e) {
 			this.sendErrorDatabase(request, e);
-		} catch (IllegalStateException|EntitySaveException e) {
-			// Those exception should both not occurre
-			this.sendErrorUnknownException(request, e);
 		}
 	}
 
@@ -2,13 +2,10 @@ package de.noahalbers.plca.backend.server.reqeusts.handlers;
 
 import java.io.IOException;
 import java.sql.SQLException;
-import java.sql.Timestamp;
-import java.util.Optional;
 
 import org.json.JSONObject;
 
-import de.noahalbers.plca.backend.database.entitys.TimespentEntity;
-import de.noahalbers.plca.backend.database.exceptions.EntitySaveException;
+import de.noahalbers.plca.backend.database.TimespentToggle;
 import de.noahalbers.plca.backend.server.reqeusts.Request;
 import de.noahalbers.plca.backend.server.reqeusts.RequestHandler;
 import de.noahalbers.plca.backend.server.reqeusts.checks.PermissionCheck;
@@ -52,8 +49,11 @@ public class LogoutRequest extends RequestHandler{
 			// Gets the id as an int
 			int id = uid.intValue();
 			
+			// Tries to log the user out
+			TimespentToggle result = this.database.toggleTimespent(request::startDatabaseConnection, id, null, false, true);
+			
 			// Checks if the user exists
-			if(!this.database.doesUserExists(request.startDatabaseConnection(), id)) {
+			if(result == TimespentToggle.USER_NOT_FOUND) {
 				// Log
 				request.logger
 				.debug("User not found")
@@ -63,11 +63,8 @@ public class LogoutRequest extends RequestHandler{
 				return;
 			}
 			
-			// Tries to get the last open entity
-			Optional<TimespentEntity> optEnt = this.database.getLastOpenTimespent(request.startDatabaseConnection(), id);
-			
-			// Checks if the user is still logged in
-			if(!optEnt.isPresent()) {
+			// Checks if the user is not logged in
+			if(result == TimespentToggle.REJECTED) {
 				request.logger
 				.debug("User is not logged in, can not log him out.")
 				.critical("ID="+uid);
@@ -76,16 +73,6 @@ public class LogoutRequest extends RequestHandler{
 				return;
 			}
 			
-			// Gets the timespent entity
-			TimespentEntity ent = optEnt.get();
-			
-			// Updates the values
-			ent.stopTime = new Timestamp(System.currentTimeMillis());
-			ent.gotDisconnected=false;
-			
-			// Updates the timespent entity on the database
-			this.database.updateTimespent(request.startDatabaseConnection(), ent);
-
 			request.logger
 			.debug("Successfully finished request")
 			.critical("ID="+uid);
@@ -94,8 +81,6 @@ public class LogoutRequest extends RequestHandler{
 			request.sendResponse(new JSONObject());
 		} catch(SQLException e) {
 			this.sendErrorDatabase(request, e);
-		} catch (EntitySaveException e) {
-			this.sendErrorUnknownException(request, e);
 		}
 	}
 
@@ -0,0 +1,80 @@
+package de.noahalbers.plca.backend.server.reqeusts.handlers;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import de.noahalbers.plca.backend.database.UserChanges;
+import de.noahalbers.plca.backend.database.entitys.SimpleUserEntity;
+import de.noahalbers.plca.backend.database.exceptions.EntitySaveException;
+import de.noahalbers.plca.backend.server.reqeusts.Request;
+import de.noahalbers.plca.backend.server.reqeusts.RequestHandler;
+import de.noahalbers.plca.backend.server.reqeusts.checks.PermissionCheck;
+import de.noahalbers.plca.backend.server.reqeusts.checks.PermissionChecks;
+
+public class SyncUsersRequest extends RequestHandler{
+
+	/**
+	 * Responses:
+	 * 	Errors:
+	 * 		database: Backend failed to establish a valid database connection
+	 * 		unknown: Some unknown error occurred, please try again.
+	 * 	
+	 * 	Success:
+	 * 		version: The version that must be send with the next sync
+	 * 		full: If the client has to replace its whole list with the users (Otherwise the changes get applied to the list). Also set if the version is older than the retention window of the change log
+	 * 		users: List with all users that got created or updated since the version (Simple: Firstname, Lastname, ID)
+	 * 		deleted: List with the ids of all users that got deleted since the version
+	 * 	
+	 * Request:
+	 * 	version: The version of the last sync (Optional; without it all users are send)
+	 * 
+	 */
+	
+	@Override
+	public void execute(Request request) throws IOException {
+		try {
+			// Gets the version of the client's list
+			Number version = request.getFromMessage("version", Number.class);
+			
+			// Grabs all changes since that version
+			UserChanges changes = this.database.getUserChanges(request.startDatabaseConnection(), version == null ? 0 : version.longValue());
+			
+			// Converts the changed users to json
+			JSONArray users = new JSONArray();
+			for(SimpleUserEntity u : changes.users) {
+				JSONObject o = new JSONObject();
+				u.save(o, SimpleUserEntity.ATTRIBUTE_LIST);
+				users.put(o);
+			}
+			
+			// Sends back the changes
+			request.sendResponse(new JSONObject() {{
+				this.put("version", changes.version);
+				this.put("full", changes.full);
+				this.put("users", users);
+				this.put("deleted", new JSONArray(changes.deleted));
+			}});
+
+			request.logger
+			.debug("Successfully finished request")
+			.critical("Version="+version+" Next="+changes.version+" Users="+changes.users.size()+" Deleted="+changes.deleted.size());
+			
+		} catch (SQLException e) {
+			this.sendErrorDatabase(request,e);
+		} catch (EntitySaveException e) {
+			this.sendErrorUnknownException(request, e);
+		}
+	}
+
+	@Override
+	public PermissionCheck[] getPermissionChecks() {
+		return of(
+			PermissionChecks.IF_ADMIN_CHECK_AUTH_CODE,
+			PermissionChecks.IF_ADMIN_CHECK_NOT_FROZEN
+		);
+	}
+
+}
@@ -59,6 +59,9 @@ public class AdminAuthcodeRequest extends RequestHandler {
 		try {
 			// Updates the admin on the database
 			this.database.updateAdmin(request.startDatabaseConnection(), adm);
+			
+			// Prevents cached admin data from being used
+			PLCA.getInstance().getServer().invalidateAdmin(adm.id);
 		} catch (SQLException e) {
 			this.sendErrorDatabase(request, e);
 			return;
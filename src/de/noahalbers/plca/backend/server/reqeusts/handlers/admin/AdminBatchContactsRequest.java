@@ -0,0 +1,141 @@
+package de.noahalbers.plca.backend.server.reqeusts.handlers.admin;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import de.noahalbers.plca.backend.PLCA;
+import de.noahalbers.plca.backend.database.ContactBatch;
+import de.noahalbers.plca.backend.database.ContactHop;
+import de.noahalbers.plca.backend.database.entitys.ContactInfoEntity;
+import de.noahalbers.plca.backend.database.entitys.UserEntity;
+import de.noahalbers.plca.backend.database.exceptions.EntitySaveException;
+import de.noahalbers.plca.backend.server.reqeusts.Request;
+import de.noahalbers.plca.backend.server.reqeusts.RequestHandler;
+import de.noahalbers.plca.backend.server.reqeusts.checks.PermissionCheck;
+import de.noahalbers.plca.backend.server.reqeusts.checks.PermissionChecks;
+
+public class AdminBatchContactsRequest extends RequestHandler{
+
+	/**
+	 * Responses:
+	 * 	Errors:
+	 * 		afterdate: No afterdate given
+	 * 		database: Backend failed to establish a valid database connection
+	 * 		users: The user-ids are not given, empty, not all numbers or more than the backend allows
+	 * 		unknown: An unkown error occurred
+	 * 		margintime: The margin-time is not given or less than 0
+	 * 	
+	 * 	Success:
+	 * 		results: Array (One entry for every requested user)
+	 * 			user: the id of the infected user
+	 * 			users: Array
+	 * 				Loadable {@link UserEntity}
+	 * 				contactinfo: Array
+	 * 					Loadable {@link ContactInfoEntity} for the user
+	 * 		exposures: Array (All contacts of the infected users, every contact once; ordered by the exposure)
+	 * 			Loadable {@link UserEntity}
+	 * 			exposure: the earliest time at which the contact could have been exposed
+	 * 			via: Array with the ids of the infected users that the contact had contact with
+	 * 	
+	 * Request:
+	 * 	afterdate: the date after which the contacts should be listed.
+	 * 	users: Array with the user-ids of the infected users
+	 * 	margintime: how many minutes of margin (spacing) should be counted to a users logout time. Represents the time that the aerosols are still present.
+	 * 
+	 */
+	
+	@Override
+	public PermissionCheck[] getPermissionChecks() {
+		return of(
+			PermissionChecks.PERM_ADMIN,
+			PermissionChecks.CHECK_ADMIN_AUTH_CODE,
+			PermissionChecks.CHECK_ADMIN_NOT_FROZEN
+		);
+	}
+
+	@Override
+	public void execute(Request request) throws IOException {
+		// Gets the after-date
+		Long afterDateStamp = request.getFromMessage("afterdate", Long.class);
+		if(afterDateStamp == null) {
+			this.sendErrorMissingField(request, "afterdate");
+			return;
+		}
+		
+		// Gets the user ids
+		Set<Integer> userIds = this.getUserIds(request.getFromMessage("users", JSONArray.class));
+		if(userIds == null) {
+			this.sendErrorMissingField(request, "users");
+			return;
+		}
+		
+		// Gets the margin-time
+		Integer marginTime = request.getFromMessage("margintime", Integer.class);
+		if(marginTime==null || marginTime < 0) {
+			this.sendErrorMissingField(request, "margintime");
+			return;
+		}
+		
+		try {
+			// Gets the contacts of all users
+			ContactBatch batch = this.database.getContactInfosForUsers(request.startDatabaseConnection(), userIds, new Timestamp(afterDateStamp), marginTime);
+			
+			// Converts the contacts of every infected user
+			JSONArray results = new JSONArray();
+			for(int id : userIds) {
+				JSONObject result = new JSONObject();
+				result.put("user", id);
+				result.put("users", AdminInfectedContactsRequest.convertUsersAndContactsToJson(batch.contacts.get(id)));
+				results.put(result);
+			}
+			
+			// Converts the merged contacts
+			JSONArray exposures = new JSONArray();
+			for(ContactHop c : batch.exposures) {
+				JSONObject userJson = new JSONObject();
+				c.user.save(userJson, UserEntity.ATTRIBUTE_LIST);
+				userJson.put("exposure", c.exposure);
+				userJson.put("via", new JSONArray(c.via));
+				exposures.put(userJson);
+			}
+			
+			// Sends the response
+			request.sendResponse(new JSONObject() {{
+				put("results", results);
+				put("exposures", exposures);
+			}});
+		} catch (SQLException e) {
+			this.sendErrorDatabase(request, e);
+		} catch (EntitySaveException e) {
+			this.sendErrorUnknownException(request, e);
+		}
+	}
+	
+	/**
+	 * Gets the distinct user-ids from the array
+	 * @param array the send array
+	 * @return null if the array is missing, empty, contains something else than numbers or has more ids than allowed; otherwise the ids in their order
+	 */
+	private Set<Integer> getUserIds(JSONArray array) {
+		// Checks if the size is valid
+		if(array == null || array.isEmpty() || array.length() > PLCA.getInstance().getConfig().<Integer>getUnsafe("contact_tracing_max_batch"))
+			return null;
+		
+		try {
+			Set<Integer> ids = new LinkedHashSet<>();
+			for(int i = 0; i < array.length(); i++)
+				ids.add(array.getInt(i));
+			return ids;
+		} catch (JSONException e) {
+			return null;
+		}
+	}
+
+}
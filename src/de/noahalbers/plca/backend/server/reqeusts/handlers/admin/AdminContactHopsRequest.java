@@ -0,0 +1,153 @@
+package de.noahalbers.plca.backend.server.reqeusts.handlers.admin;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Optional;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import de.noahalbers.plca.backend.PLCA;
+import de.noahalbers.plca.backend.database.ContactHop;
+import de.noahalbers.plca.backend.database.entitys.UserEntity;
+import de.noahalbers.plca.backend.database.exceptions.EntitySaveException;
+import de.noahalbers.plca.backend.server.reqeusts.Request;
+import de.noahalbers.plca.backend.server.reqeusts.RequestHandler;
+import de.noahalbers.plca.backend.server.reqeusts.checks.PermissionCheck;
+import de.noahalbers.plca.backend.server.reqeusts.checks.PermissionChecks;
+
+public class AdminContactHopsRequest extends RequestHandler{
+
+	/**
+	 * Responses:
+	 * 	Errors:
+	 * 		afterdate: No afterdate given
+	 * 		database: Backend failed to establish a valid database connection
+	 * 		user: The user is not given.
+	 * 		not_found: the user could not be found.
+	 * 		unknown: An unkown error occurred
+	 * 		margintime: The margin-time is not given or less than 0
+	 * 		depth: The depth is not given, less than 1 or more than the backend allows
+	 * 	
+	 * 	Success:
+	 * 		profile: Loaded {@link UserEntity} - the profile of the requested user
+	 * 		users: Array (Ordered by the hop and exposure)
+	 * 			Loadable {@link UserEntity}
+	 * 			hop: how many contacts are between the requested user and the contact (1 for direct contacts)
+	 * 			exposure: the earliest time at which the contact could have been exposed (Over all hops within the depth, a later hop can expose the contact earlier)
+	 * 			via: Array with the ids of the users that passed on an exposure to the contact
+	 * 	
+	 * Request:
+	 * 	afterdate: the date at which the user counts as infected. Contacts before this date wont be counted.
+	 * 	user: the user-id of the user of which the contacts should be listed
+	 * 	margintime: how many minutes of margin (spacing) should be counted to a users logout time. Represents the time that the aerosols are still present.
+	 * 	depth: how many hops (Contacts of contacts) should be searched
+	 * 
+	 */
+	
+	@Override
+	public PermissionCheck[] getPermissionChecks() {
+		return of(
+			PermissionChecks.PERM_ADMIN,
+			PermissionChecks.CHECK_ADMIN_AUTH_CODE,
+			PermissionChecks.CHECK_ADMIN_NOT_FROZEN
+		);
+	}
+
+	@Override
+	public void execute(Request request) throws IOException {
+		// Gets the after-date
+		Long afterDateStamp = request.getFromMessage("afterdate", Long.class);
+		if(afterDateStamp == null) {
+			this.sendErrorMissingField(request, "afterdate");
+			return;
+		}
+		
+		// Gets the user id
+		Integer userId = request.getFromMessage("user", Integer.class);
+		if(userId == null) {
+			this.sendErrorMissingField(request, "user");
+			return;
+		}
+		
+		// Gets the margin-time
+		Integer marginTime = request.getFromMessage("margintime", Integer.class);
+		if(marginTime==null || marginTime < 0) {
+			this.sendErrorMissingField(request, "margintime");
+			return;
+		}
+		
+		// Gets the depth
+		Integer depth = request.getFromMessage("depth", Integer.class);
+		if(depth==null || depth < 1 || depth > PLCA.getInstance().getConfig().<Integer>getUnsafe("contact_tracing_max_depth")) {
+			this.sendErrorMissingField(request, "depth");
+			return;
+		}
+		
+		try {
+			// Received the user
+			Optional<UserEntity> user = this.database.getUser(request.startDatabaseConnection(), userId);
+			
+			// Checks if the given does not exist
+			if(!user.isPresent()) {
+				this.sendErrorMissingField(request, "not_found");
+				return;
+			}
+			
+			// Saves the user to a json-object
+			JSONObject userObject = new JSONObject();
+			user.get().save(userObject, UserEntity.ATTRIBUTE_LIST);
+			
+			// Gets the contacts over all hops
+			List<ContactHop> contacts = this.database.getContactHopsForUser(request.startDatabaseConnection(), userId, new Timestamp(afterDateStamp), marginTime, depth);
+			
+			// Response object
+			JSONObject resp = new JSONObject() {{
+				// Appends the contacts
+				put("users",convertHopsToJson(contacts));
+				
+				// Appends the user's profile
+				put("profile",userObject);
+			}};
+			
+			// Sends the response
+			request.sendResponse(resp);
+		} catch (SQLException e) {
+			this.sendErrorDatabase(request, e);
+		} catch (EntitySaveException e) {
+			this.sendErrorUnknownException(request, e);
+		}
+	}
+	
+	/**
+	 * Converts all given contacts with their hop and exposure to a json-array
+	 * @param contacts the contacts
+	 * @return an json array that holds the information
+	 * @throws EntitySaveException if anything went wrong while saving the contacts
+	 */
+	private JSONArray convertHopsToJson(List<ContactHop> contacts) throws EntitySaveException {
+		// Array with all users
+		JSONArray users = new JSONArray();
+		
+		for(ContactHop c : contacts) {
+			// The user object
+			JSONObject userJson = new JSONObject();
+			
+			// Saves the user to the object
+			c.user.save(userJson, UserEntity.ATTRIBUTE_LIST);
+			
+			// Appends the search infos
+			userJson.put("hop", c.hop);
+			userJson.put("exposure", c.exposure);
+			userJson.put("via", new JSONArray(c.via));
+			
+			// Appends the user
+			users.put(userJson);
+		}
+		
+		return users;
+	}
+
+}
@@ -3,6 +3,8 @@ package de.noahalbers.plca.backend.server.reqeusts.handlers.admin;
 import java.io.IOException;
 import java.sql.SQLException;
 
+import de.noahalbers.plca.backend.PLCA;
+import de.noahalbers.plca.backend.database.entitys.AdminEntity;
 import de.noahalbers.plca.backend.server.reqeusts.Request;
 import de.noahalbers.plca.backend.server.reqeusts.RequestHandler;
 import de.noahalbers.plca.backend.server.reqeusts.checks.PermissionCheck;
@@ -30,8 +32,17 @@ public class AdminFreezeSelfRequest extends RequestHandler{
 	@Override
 	public void execute(Request request) throws IOException {
 		try {
+			// Gets the admin
+			AdminEntity adm = request.getAdmin().get();
+			
 			// Updates the status
-			this.database.freezeAdminAccount(request.startDatabaseConnection(), request.getAdmin().get().id);
+			this.database.freezeAdminAccount(request.startDatabaseConnection(), adm.id);
+			
+			// Updates the admin of the connection (The following requests of a session reuse it)
+			adm.isFrozen = true;
+			
+			// Prevents resumed connections from using the old account state
+			PLCA.getInstance().getServer().invalidateAdmin(adm.id);
 			
 			// Sends the successfull request back
 			request.sendResponse(null);
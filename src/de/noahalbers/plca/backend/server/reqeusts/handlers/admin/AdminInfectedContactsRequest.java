@@ -119,7 +119,7 @@ public class AdminInfectedContactsRequest extends RequestHandler{
 	 * @return an json array that holds the information
 	 * @throws EntitySaveException if anything went wrong while saving the contacts
 	 */
-	private JSONArray convertUsersAndContactsToJson(Map<UserEntity, List<ContactInfoEntity>> contacts) throws EntitySaveException {
+	static JSONArray convertUsersAndContactsToJson(Map<UserEntity, List<ContactInfoEntity>> contacts) throws EntitySaveException {
 		// Array with all users
 		JSONArray users = new JSONArray();
 		
@@ -132,7 +132,7 @@ public class AdminInfectedContactsRequest extends RequestHandler{
 			user.getKey().save(userJson, UserEntity.ATTRIBUTE_LIST);
 			
 			// Appends the user infos
-			userJson.put("contactinfo", this.concatInfoToJson(user.getValue()));
+			userJson.put("contactinfo", concatInfoToJson(user.getValue()));
 			
 			// Appends the user
 			users.put(userJson);
@@ -149,7 +149,7 @@ public class AdminInfectedContactsRequest extends RequestHandler{
 	 * @return an json array that contains the saved data
 	 * @throws EntitySaveException if anything went wrong while saving the data
 	 */
-	private JSONArray concatInfoToJson(List<ContactInfoEntity> infos) throws EntitySaveException {
+	static JSONArray concatInfoToJson(List<ContactInfoEntity> infos) throws EntitySaveException {
 		// The array
 		JSONArray arr = new JSONArray();
 		
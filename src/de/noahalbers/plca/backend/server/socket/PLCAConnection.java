@@ -1,6 +1,11 @@
 package de.noahalbers.plca.backend.server.socket;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
@@ -8,13 +13,16 @@ import java.security.PublicKey;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Map.Entry;
 import java.util.Optional;
 import java.util.function.Consumer;
+import java.util.function.IntUnaryOperator;
 
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -22,16 +30,48 @@ import com.mysql.cj.exceptions.RSAException;
 
 import de.noahalbers.plca.backend.EncryptionManager;
 import de.noahalbers.plca.backend.PLCA;
+import de.noahalbers.plca.backend.database.StreamedJSONArray;
 import de.noahalbers.plca.backend.database.entitys.AdminEntity;
 import de.noahalbers.plca.backend.logger.Logger;
 import de.noahalbers.plca.backend.server.reqeusts.Request;
+import de.noahalbers.plca.backend.server.reqeusts.Request.PacketSender;
 import de.noahalbers.plca.backend.server.reqeusts.RequestHandler;
 import de.noahalbers.plca.backend.server.reqeusts.checks.PermissionCheck;
+import de.noahalbers.plca.backend.server.socket.SessionTicketCache.SessionTicket;
 import de.noahalbers.plca.backend.server.socket.exception.PLCAAdminNotFoundException;
 import de.noahalbers.plca.backend.server.socket.exception.PLCAConnectionTimeoutException;
 import de.noahalbers.plca.backend.util.Nullable;
 
-public class PLCAConnection extends Thread {
+public class PLCAConnection implements Runnable {
+
+	// Client-id that gets send instead of an admin-id to resume a connection using
+	// a session ticket
+	public static final short CLIENT_RESUME = 0xFF;
+
+	// Client-id that gets send instead of an admin-id to announce the protocol
+	// version (Followed by the version and the actual client-id)
+	public static final short CLIENT_VERSIONED = 0xFE;
+
+	// All protocol versions
+	public static final int
+			PROTOCOL_LEGACY = 1,	// Aes-cbc with the nonce in front of every response
+			PROTOCOL_GCM = 2,		// Aes-gcm with per-message counters
+			PROTOCOL_CHUNKED = 3;	// Aes-gcm with varint frame lengths and packets that can be split into chunks
+
+	// The newest supported protocol version
+	public static final int PROTOCOL_LATEST = PROTOCOL_CHUNKED;
+
+	// Flag in front of every chunk that marks that another chunk of the packet follows
+	private static final int FLAG_MORE_CHUNKS = 1;
+
+	// How many bytes a frame can have before protocol version 3 (Two byte length)
+	private static final int MAX_SHORT_FRAME = 0xFFFF;
+
+	// Directions of a packet (Used inside the aes-gcm nonce)
+	private static final int DIRECTION_CLIENT = 0, DIRECTION_SERVER = 1;
+
+	// How many bytes the nonce has
+	private static final int NONCE_LENGTH = 8;
 
 	// Reference to the program
 	private PLCA plca = PLCA.getInstance();
@@ -45,8 +85,8 @@ public class PLCAConnection extends Thread {
 	// Callback function for when the connection status changes
 	private Consumer<ConnectionStatus> onStatusChange;
 
-	// Manager for the encryption
-	private EncryptionManager encryptionManager = new EncryptionManager();
+	// Manager for the encryption (Shared by all connections)
+	private EncryptionManager encryptionManager = EncryptionManager.getShared();
 
 	// A connection that has been opend to the database to extract information. May
 	// be null depending on the time
@@ -69,31 +109,136 @@ public class PLCAConnection extends Thread {
 	@Nullable
 	private byte[] nonceBytes;
 
+	// The protocol version that the client uses
+	private int protocolVersion = PROTOCOL_LEGACY;
+
+	// The oldest protocol version that clients can use
+	private int minProtocolVersion;
+
+	// Counters of the send and received packets (Aes-gcm only)
+	private long sendCounter, receiveCounter;
+
+	// How many bytes of a response get send per chunk (Protocol version 3)
+	private int chunkSize;
+
+	// How many bytes a packet of the client can have (Protocol version 3)
+	private int maxPacketSize;
+
+	// If the client has opened a session (Multiple requests on the same handshake)
+	private volatile boolean isSession;
+
+	// How many millis to wait for the next request of a session until it gets
+	// closed (0 or less disables sessions)
+	private long sessionIdleTimeout;
+
+	// How many millis to wait for the first request until the connection is
+	// counted timed out
+	private long connectionTimeout;
+
 	public PLCAConnection(long connectionID, Socket socket, Consumer<ConnectionStatus> onStatusChange)
 			throws NumberFormatException {
+		this(connectionID,
+				new PLCASocket(connectionID, socket, PLCA.getInstance().getConfig().getUnsafe("connection_timeout")),
+				onStatusChange);
+	}
+
+	/**
+	 * @param connectionID
+	 *            a random id used to identify the connection in the log files
+	 * @param socket
+	 *            the already wrapped socket (Eg. backed by a nio-channel)
+	 * @param onStatusChange
+	 *            callback function for when the connection status changes
+	 */
+	public PLCAConnection(long connectionID, PLCASocket socket, Consumer<ConnectionStatus> onStatusChange) {
 		this.log = new Logger("PLCAConnection." + connectionID);
 
 		this.onStatusChange = onStatusChange;
-		this.socket = new PLCASocket(connectionID, socket, this.plca.getConfig().getUnsafe("connection_timeout"));
-		this.encryptionManager.init();
+		this.socket = socket;
+		this.sessionIdleTimeout = this.plca.getConfig().getUnsafe("session_idle_timeout");
+		this.connectionTimeout = this.plca.getConfig().getUnsafe("connection_timeout");
+		this.minProtocolVersion = this.plca.getConfig().getUnsafe("protocol_min_version");
+		this.chunkSize = Math.max(1, this.plca.getConfig().<Integer>getUnsafe("protocol_chunk_size"));
+		this.maxPacketSize = this.plca.getConfig().getUnsafe("max_packet_size");
 	}
 
 	@Override
 	public void run() {
-		// Request object that shall be used
-		Request request = null;
-
 		// Performs the secure handshake with the client
 		if (!this.doHandshake())
 			return;
 
-		// Now we have a secure connection an can start to send data
+		// Now we have a secure connection an can start to send data (Until the
+		// session ends)
+		while (this.handleRequest())
+			;
+	}
+
+	/**
+	 * Can only be used after the handshake is completed.
+	 * 
+	 * Waits for the next request-packet and executes the requested handler. If the
+	 * client has not opened a session, the connection gets closed afterwards.
+	 * 
+	 * A client opens a session by setting "session" to true inside a request. The
+	 * session continues until the client sends a packet with "close" set to true,
+	 * closes the connection or stays idle for too long. A "requestid" that is send
+	 * with a request gets passed back with all of its responses.
+	 * 
+	 * @return if the session continues and the next request-packet can be handled
+	 */
+	public boolean handleRequest() {
+		// Request object that shall be used
+		Request request = null;
 
 		try {
+			// Checks if the next request of the session is awaited
+			if (this.isSession) {
+				try {
+					// Waits for the next request using the idle timeout
+					this.socket.awaitData(this.sessionIdleTimeout);
+				} catch (IOException e) {
+					// Log
+					this.log.debug("Session ended (Timed out or closed by the client)").critical(e.toString());
+
+					// Ends the connection
+					this.killConnection(ConnectionStatus.DISCONNECTED_SUCCESS);
+					return false;
+				}
+			}
+
 			// Waits for the request-packet
 			JSONObject pkt = this.receivePacket();
 
 			this.log.debug("Received request-packet");
+
+			// Checks if the client ends the session
+			if (pkt.optBoolean("close")) {
+				this.log.debug("Session got closed by the client");
+				this.killConnection(ConnectionStatus.DISCONNECTED_SUCCESS);
+				return false;
+			}
+
+			// Checks if the client opens a session
+			if (!this.isSession && this.sessionIdleTimeout > 0 && pkt.optBoolean("session")) {
+				this.isSession = true;
+				this.log.debug("Opened session");
+			}
+
+			// Gets the optional id that will be passed back with the responses
+			Object requestId = pkt.opt("requestid");
+
+			// Issues a session ticket if the client requested one
+			String ticket = pkt.optBoolean("ticket") ? this.issueTicket() : null;
+
+			// Sends the responses (Appends the request id and the ticket)
+			PacketSender respond = res -> {
+				if (requestId != null)
+					res.put("requestid", requestId);
+				if (ticket != null)
+					res.put("ticket", ticket).put("ticketlifetime", this.plca.getServer().getTicketCache().getLifetime());
+				this.sendPacket(res);
+			};
 			
 			// Holds the specified handler
 			RequestHandler handler;
@@ -112,8 +257,8 @@ public class PLCAConnection extends Thread {
 				this.log.debug("Found handler").critical(endptId);
 				
 			} catch (JSONException e) {
-				this.sendPreprocessingErrorAndClose("handler", null, ConnectionStatus.DISCONNECTED_NO_HANDLER);
-				return;
+				this.sendPreprocessingError("handler", null, respond, ConnectionStatus.DISCONNECTED_NO_HANDLER);
+				return this.isSession;
 			}
 
 			// The data for the request
@@ -131,8 +276,11 @@ public class PLCAConnection extends Thread {
 			}
 
 			// Creates the request
-			request = new Request(this.socket.getConnectionId(), requestData, auth, this::sendPacket,
-					this::receivePacket, this.dbconnection, this.connectedAdmin);
+			request = new Request(this.socket.getConnectionId(), requestData, auth, respond, this::receivePacket,
+					this.dbconnection, this.connectedAdmin);
+
+			// The request now owns and closes the database connection
+			this.dbconnection = null;
 
 			// Checks that all permissions are given
 			for (PermissionCheck check : handler.getPermissionChecks()) {
@@ -141,15 +289,21 @@ public class PLCAConnection extends Thread {
 
 				// Checks if the check failed
 				if (result != null) {
-					this.sendPreprocessingErrorAndClose(result.getKey(), result.getValue(),
+					this.sendPreprocessingError(result.getKey(), result.getValue(), respond,
 							ConnectionStatus.DISCONNECTED_AUTH_ERROR);
-					return;
+					return this.isSession;
 				}
 			}
 
 			// Executes the handler
 			handler.execute(request);
 
+			// Checks if the session continues
+			if (this.isSession) {
+				this.log.debug("Got completed successfully. Waiting for the next request...");
+				return true;
+			}
+
 			// Log
 			this.log.debug("Got completed successfully. Disconnecting...");
 
@@ -163,6 +317,23 @@ public class PLCAConnection extends Thread {
 			if (request != null)
 				request.Destruct();
 		}
+
+		return false;
+	}
+
+	/**
+	 * @return if the client has opened a session
+	 */
+	public boolean isSession() {
+		return this.isSession;
+	}
+
+	/**
+	 * @return how many millis to wait for the next request-packet until the
+	 *         connection is counted timed out
+	 */
+	public long getRequestTimeout() {
+		return this.isSession ? this.sessionIdleTimeout : this.connectionTimeout;
 	}
 
 	/**
@@ -171,19 +342,37 @@ public class PLCAConnection extends Thread {
 	 * @return if the handshake was successful. If not the connection got killed
 	 *         automatically.
 	 */
-	private boolean doHandshake() {
+	public boolean doHandshake() {
 		try {
 			// Gets the client id (0 is the covid-login)
 			short clientId = this.socket.readUByte();
 
+			// Checks if the client announces its protocol version
+			if (clientId == CLIENT_VERSIONED) {
+				this.protocolVersion = this.socket.readUByte();
+
+				// Gets the actual client id
+				clientId = this.socket.readUByte();
+			}
+
+			// Checks if the protocol version is supported
+			if (this.protocolVersion < this.minProtocolVersion || this.protocolVersion > PROTOCOL_LATEST)
+				throw new IOException("Unsupported protocol version: " + this.protocolVersion);
+
+			this.log.debug("Using protocol version").critical("Version=" + this.protocolVersion);
+
 			// Logs
 			this.log.debug("Received clientid").critical("ID=" + clientId);
 
 			// Receives the nonce
-			this.nonceBytes = this.socket.readXBytes(8);
+			this.nonceBytes = this.socket.readXBytes(NONCE_LENGTH);
 
 			this.log.debug("Received nonce").critical("Nonce=" + Arrays.toString(this.nonceBytes));
 
+			// Checks if the client resumes a connection using a session ticket
+			if (clientId == CLIENT_RESUME)
+				return this.resumeSession();
+
 			// Gets the remote rsa-public key
 			PublicKey remoteKey = this.getKeyAndPrepare(clientId);
 			
@@ -230,6 +419,190 @@ public class PLCAConnection extends Thread {
 		return false;
 	}
 
+	/**
+	 * Resumes a previous connection using the session ticket that gets send by the
+	 * client. Skips the rsa-encryption and database lookup.
+	 * 
+	 * The server responds with a single byte (1 if the ticket got accepted; 0 if
+	 * the ticket is unknown or expired). If accepted, the server sends a new
+	 * aes-iv (16 bytes) and both sides use the first 32 bytes of
+	 * sha256(ticket-secret + nonce + iv) as the aes-key.
+	 * 
+	 * @return if the connection got resumed. If not the connection got killed.
+	 * @throws IOException
+	 *             if anything went wrong with the I/O
+	 */
+	private boolean resumeSession() throws IOException {
+		// Receives the ticket
+		byte[] ticketBytes = this.socket.readXBytes(SessionTicketCache.TICKET_LENGTH);
+
+		// Gets the stored ticket
+		Optional<SessionTicket> ticket = this.plca.getServer().getTicketCache().get(ticketBytes);
+
+		// Checks if the ticket is unknown or expired
+		if (!ticket.isPresent()) {
+			this.log.debug("Unknown session ticket");
+
+			// Tells the client to perform a full handshake
+			this.socket.write((byte) 0);
+			this.socket.flush();
+
+			this.killConnection(ConnectionStatus.DISCONNECTED_AUTH_ERROR);
+			return false;
+		}
+
+		// Restores the connected admin
+		this.connectedAdmin = ticket.get().admin;
+
+		// Generates a new iv
+		this.aesIv = this.encryptionManager.generateAESIV();
+
+		// Derives the new key (A fresh key for every resumed connection)
+		byte[] secret = ticket.get().secret;
+		this.aesKey = new SecretKeySpec(
+				this.encryptionManager.hashSHA256(ByteBuffer.allocate(secret.length + NONCE_LENGTH + 16).put(secret)
+						.put(this.nonceBytes).put(this.aesIv.getIV()).array()),
+				0, 32, "AES");
+
+		// Sends the acceptance and the iv
+		this.socket.write((byte) 1);
+		this.socket.write(this.aesIv.getIV());
+		this.socket.flush();
+
+		this.log.debug("Resumed connection using a session ticket");
+
+		return true;
+	}
+
+	/**
+	 * Issues a session ticket that the client can use to resume the connection
+	 * 
+	 * @return the ticket as base64; null if session tickets are disabled or the
+	 *         connected admin is frozen
+	 */
+	@Nullable
+	private String issueTicket() {
+		// Gets the cache
+		SessionTicketCache cache = this.plca.getServer().getTicketCache();
+
+		// Checks if session tickets are disabled
+		if (!cache.isEnabled())
+			return null;
+
+		// Checks if the admin of the connection is known to be frozen
+		if (this.connectedAdmin != null && this.connectedAdmin.isFrozen) {
+			this.log.debug("Refused to issue a session ticket for a frozen admin");
+			return null;
+		}
+
+		// Issues the ticket
+		byte[] ticket = cache.issue(this.aesKey.getEncoded(), this.connectedAdmin);
+
+		// Checks if the admin got frozen by another connection in the meantime. Checked
+		// after issuing: A freeze that invalidated the tickets before this one got
+		// stored has already been written to the database.
+		if (this.connectedAdmin != null) {
+			try (Connection con = this.plca.getDatabase().startConnection()) {
+				Optional<AdminEntity> adm = this.plca.getDatabase().getAdminById(this.connectedAdmin.id, con);
+
+				if (!adm.isPresent() || adm.get().isFrozen) {
+					this.log.debug("Refused to issue a session ticket for a frozen admin");
+					this.connectedAdmin.isFrozen = true;
+					cache.revoke(ticket);
+					return null;
+				}
+			} catch (SQLException e) {
+				this.log.debug("Failed to re-read the admin, no session ticket issued").critical(e);
+				cache.revoke(ticket);
+				return null;
+			}
+		}
+
+		return Base64.getEncoder().encodeToString(ticket);
+	}
+
+	/**
+	 * @param available
+	 *            how many bytes of the handshake have been received
+	 * @param peek
+	 *            returns the received byte at the given index
+	 * @return how many bytes the client sends to start the handshake; -1 if more
+	 *         bytes are required to know
+	 */
+	public static int getHandshakeLength(int available, IntUnaryOperator peek) {
+		if (available < 1)
+			return -1;
+
+		// Gets the length of the optional version (Marker and version)
+		int versionLength = peek.applyAsInt(0) == CLIENT_VERSIONED ? 2 : 0;
+
+		// Checks if the client-id is missing
+		if (available <= versionLength)
+			return -1;
+
+		// Version, client-id, nonce and the ticket if the connection gets resumed
+		return versionLength + 1 + NONCE_LENGTH
+				+ (peek.applyAsInt(versionLength) == CLIENT_RESUME ? SessionTicketCache.TICKET_LENGTH : 0);
+	}
+
+	/**
+	 * Can only be used after the handshake is completed.
+	 * 
+	 * @param available
+	 *            how many bytes of the next frame have been received
+	 * @param peek
+	 *            returns the received byte at the given index
+	 * @return how many bytes have to be received until the frame can be read; -1
+	 *         if more bytes are required to know. If the frame is too large, only
+	 *         its header is required as the frame will be rejected anyway.
+	 */
+	public int getFrameLength(int available, IntUnaryOperator peek) {
+		// Checks if the frame has a two byte length
+		if (this.protocolVersion < PROTOCOL_CHUNKED)
+			return available < 2 ? -1 : 2 + (peek.applyAsInt(0) | (peek.applyAsInt(1) << 8));
+
+		// Reads the varint length
+		int length = 0;
+		for (int i = 0; i < 5; i++) {
+			// Checks if the byte is missing
+			if (i >= available)
+				return -1;
+
+			int b = peek.applyAsInt(i);
+			length |= (b & 0x7f) << (i * 7);
+
+			// Checks if this was the last byte
+			if ((b & 0x80) == 0)
+				return length < 0 || length > this.maxPacketSize ? i + 1 : i + 1 + length;
+		}
+
+		// The varint is invalid and will be rejected
+		return 5;
+	}
+
+	/**
+	 * Creates the aes-gcm nonce of a packet (The aes-iv combined with the direction
+	 * and counter of the packet). Every packet gets its own nonce without sending
+	 * it.
+	 * 
+	 * @param direction
+	 *            the direction in which the packet gets send
+	 * @param counter
+	 *            how many packets got send into the direction before
+	 * @return the nonce (12 bytes)
+	 */
+	private byte[] getGCMNonce(int direction, long counter) {
+		// Starts with the iv
+		byte[] nonce = Arrays.copyOf(this.aesIv.getIV(), 12);
+
+		// Appends the direction and counter
+		nonce[0] ^= direction;
+		for (int i = 0; i < 8; i++)
+			nonce[11 - i] ^= (byte) (counter >>> (i * 8));
+
+		return nonce;
+	}
+
 	/**
 	 * Gets the remote rsa-public key for the requesting user
 	 * 
@@ -252,7 +625,7 @@ public class PLCAConnection extends Thread {
 	private PublicKey getKeyAndPrepare(short id) throws SQLException, RSAException, PLCAAdminNotFoundException {
 		// Checks if the requester is from the covid-login
 		if (id == 0)
-			return this.encryptionManager.getPublicKeyFromSpec(this.plca.getConfig().getUnsafe("applogin_pubK"));
+			return this.plca.getServer().getKeyCache().getAppLoginKey();
 
 		// Opens a connection to the database
 		this.dbconnection = this.plca.getDatabase().startConnection();
@@ -267,13 +640,13 @@ public class PLCAConnection extends Thread {
 		// Stores the admin
 		this.connectedAdmin = adm.get();
 
-		// Tries to generate the key
-		return this.encryptionManager
-				.getPublicKeyFromSpec(EncryptionManager.getPublicKeySpecFromJson(new JSONObject(adm.get().publicKey)));
+		// Gets the parsed key (Only gets parsed if it is unknown or has changed)
+		return this.plca.getServer().getKeyCache().getAdminKey(adm.get());
 	}
 
 	/**
-	 * Sends a packet with an pre-processing error
+	 * Sends a packet with an pre-processing error. Closes the connection if the
+	 * client has not opened a session.
 	 * 
 	 * @param status
 	 *            the status that should be used to send the connection
@@ -281,16 +654,18 @@ public class PLCAConnection extends Thread {
 	 *            the error string
 	 * @param data
 	 *            extra data that can optionally be passed with the error message
+	 * @param respond
+	 *            sends the packet as a response to the request that failed
 	 * @throws IOException
 	 *             if anything went wrong
 	 */
-	private void sendPreprocessingErrorAndClose(String error, @Nullable JSONObject data, ConnectionStatus status)
-			throws IOException {
+	private void sendPreprocessingError(String error, @Nullable JSONObject data, PacketSender respond,
+			ConnectionStatus status) throws IOException {
 		// Log
 		this.log.debug("Failed in pre-processing").critical("Error=" + error + " Status=" + status);
 
 		// Sends an packet the error
-		this.sendPacket(new JSONObject() {
+		respond.send(new JSONObject() {
 			{
 				put("status", 1);
 				put("error", error);
@@ -298,6 +673,10 @@ public class PLCAConnection extends Thread {
 			}
 		});
 
+		// Keeps the session alive
+		if (this.isSession)
+			return;
+
 		// Kills the connection
 		this.killConnection(status);
 	}
@@ -315,23 +694,14 @@ public class PLCAConnection extends Thread {
 	 */
 	public JSONObject receivePacket() throws IOException {
 		try {
-			// Waits for the request
-			int len = this.socket.readUByte() | (this.socket.readUByte() << 8);
-
-			// Create the space for the amount of bytes that will be received
-			byte[] data = new byte[len];
-
-			// Receives the data
-			this.socket.readByte(data);
-
-			// Tries to decrypt the data
-			Optional<byte[]> optDec = this.encryptionManager.decryptAES(data, this.aesKey, this.aesIv);
-
-			// Checks if the decryption failed
-			if (!optDec.isPresent())
-				throw new IOException("Failed to decrypt received message: " + Arrays.toString(data));
-
-			return new JSONObject(new String(optDec.get(), StandardCharsets.UTF_8));
+			// Receives the decrypted packet
+			byte[] pkt;
+			if (this.protocolVersion >= PROTOCOL_CHUNKED)
+				pkt = this.receiveChunks();
+			else
+				pkt = this.decrypt(this.socket.readFrame());
+
+			return new JSONObject(new String(pkt, StandardCharsets.UTF_8));
 		} catch (IOException e) {
 			// Ensures a terminated connection
 			this.killConnection(ConnectionStatus.DISCONNECTED_IO);
@@ -343,10 +713,69 @@ public class PLCAConnection extends Thread {
 		}
 	}
 
+	/**
+	 * Receives all chunks of the next packet and combines them (Protocol version 3)
+	 * 
+	 * @return the decrypted packet
+	 * @throws IOException
+	 *             if anything went wrong with the I/O, the decryption failed or the
+	 *             packet is too large
+	 */
+	private byte[] receiveChunks() throws IOException {
+		// The combined chunks
+		ByteArrayOutputStream pkt = new ByteArrayOutputStream();
+
+		while (true) {
+			// Receives and decrypts the next chunk
+			byte[] chunk = this.decrypt(this.socket.readLargeFrame(this.maxPacketSize));
+
+			// Checks if the flags are missing
+			if (chunk.length < 1)
+				throw new IOException("Received a chunk without flags");
+
+			// Appends the chunk
+			pkt.write(chunk, 1, chunk.length - 1);
+
+			// Checks if the packet is too large
+			if (pkt.size() > this.maxPacketSize)
+				throw new IOException("Received a packet with more than " + this.maxPacketSize + " bytes");
+
+			// Checks if this was the last chunk
+			if ((chunk[0] & FLAG_MORE_CHUNKS) == 0)
+				return pkt.toByteArray();
+		}
+	}
+
+	/**
+	 * Decrypts a received frame using the agreed key
+	 * 
+	 * @param data
+	 *            the payload of the frame
+	 * @return the decrypted bytes
+	 * @throws IOException
+	 *             if the decryption failed (Aes-gcm fails if the packet got
+	 *             tampered with, replayed or reordered)
+	 */
+	private byte[] decrypt(byte[] data) throws IOException {
+		// Tries to decrypt the data
+		Optional<byte[]> optDec = this.protocolVersion >= PROTOCOL_GCM
+				? this.encryptionManager.decryptGCM(data, this.aesKey,
+						this.getGCMNonce(DIRECTION_CLIENT, this.receiveCounter++), this.nonceBytes)
+				: this.encryptionManager.decryptAES(data, this.aesKey, this.aesIv);
+
+		// Checks if the decryption failed
+		if (!optDec.isPresent())
+			throw new IOException("Failed to decrypt received message: " + Arrays.toString(data));
+
+		return optDec.get();
+	}
+
 	/**
 	 * Can only be used after the handshake is completed.
 	 * 
-	 * Sends a packet that is encrypted using the agreed key
+	 * Sends a packet that is encrypted using the agreed key. With protocol version
+	 * 3 the packet gets streamed in chunks, otherwise it must fit into a single
+	 * frame.
 	 * 
 	 * @param data
 	 *            the packet that shall be send (Json)
@@ -359,15 +788,32 @@ public class PLCAConnection extends Thread {
 	 */
 	public void sendPacket(JSONObject data) throws IOException {
 		try {
-			// Gets the raw packet bytes
-			byte[] rawPkt = data.toString().getBytes(StandardCharsets.UTF_8);
+			// Checks if the packet can be streamed in chunks
+			if (this.protocolVersion >= PROTOCOL_CHUNKED) {
+				this.sendChunks(data);
+				return;
+			}
 
-			// Combines the nonce bytes and the data from the jobject
-			byte[] finPkt = ByteBuffer.allocate(rawPkt.length + this.nonceBytes.length).put(this.nonceBytes).put(rawPkt)
-					.array();
+			// Gets the raw packet bytes (Writes the json instead of toString to get errors of streamed values, which
+			// are read into a string here)
+			StringWriter json = new StringWriter();
+			try {
+				data.write(json);
+			} catch (JSONException e) {
+				throw new IOException("Failed to write json", e);
+			}
+			byte[] rawPkt = json.toString().getBytes(StandardCharsets.UTF_8);
 
 			// Tries to encrypt the message
-			Optional<byte[]> optEnc = this.encryptionManager.encryptAES(finPkt, this.aesKey, this.aesIv);
+			Optional<byte[]> optEnc;
+			if (this.protocolVersion >= PROTOCOL_GCM)
+				// Authenticates the nonce instead of sending it
+				optEnc = this.encryptionManager.encryptGCM(rawPkt, this.aesKey,
+						this.getGCMNonce(DIRECTION_SERVER, this.sendCounter++), this.nonceBytes);
+			else
+				// Combines the nonce bytes and the data from the jobject
+				optEnc = this.encryptionManager.encryptAES(ByteBuffer.allocate(rawPkt.length + this.nonceBytes.length)
+						.put(this.nonceBytes).put(rawPkt).array(), this.aesKey, this.aesIv);
 
 			// Checks if the encryption failed
 			if (!optEnc.isPresent())
@@ -375,18 +821,14 @@ public class PLCAConnection extends Thread {
 
 			byte[] pkt = optEnc.get();
 
-			// Checks if an error occured with the amount of bytes that need to be send
-			if (pkt.length > Math.pow(2, 16))
-				this.log.error("Connection needs to send a message with " + pkt.length
-						+ " bytes, but can only send a packet with " + Math.pow(2, 16) + " bytes!");
-
-			// Sends the length for the response
-			this.socket.write((byte) pkt.length);
-			this.socket.write((byte) (pkt.length >> 8));
+			// Checks if the packet does not fit into a frame
+			if (pkt.length > MAX_SHORT_FRAME)
+				throw new IOException("Connection needs to send a message with " + pkt.length
+						+ " bytes, but can only send a packet with " + MAX_SHORT_FRAME + " bytes using protocol version "
+						+ this.protocolVersion);
 
-			// Sends the data
-			this.socket.write(pkt);
-			this.socket.flush();
+			// Sends the length and data for the response
+			this.socket.writeFrame(pkt);
 		} catch (IOException e) {
 			// Ensures a terminated connection
 			this.killConnection(ConnectionStatus.DISCONNECTED_IO);
@@ -394,6 +836,160 @@ public class PLCAConnection extends Thread {
 		}
 	}
 
+	/**
+	 * Writes the packet as json directly into chunks that get encrypted and send
+	 * once they are full (Protocol version 3). The whole packet never has to be
+	 * held in memory ({@link StreamedJSONArray}s are written while their rows get
+	 * read).
+	 * 
+	 * @param data
+	 *            the packet that shall be send (Json)
+	 * @throws IOException
+	 *             if anything happens with the I/O or the encryption failes
+	 */
+	private void sendChunks(JSONObject data) throws IOException {
+		ChunkOutputStream stream = new ChunkOutputStream();
+		Writer writer = new OutputStreamWriter(stream, StandardCharsets.UTF_8);
+
+		try {
+			// Writes the packet
+			writeJson(writer, data);
+		} catch (JSONException e) {
+			// Forwards errors of the chunk stream
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Failed to write json", e);
+		}
+
+		// Sends the last chunk
+		writer.flush();
+		stream.finish();
+	}
+
+	/**
+	 * Writes the json value. Objects and arrays are written element by element, so
+	 * that a {@link StreamedJSONArray} inside them gets streamed (The json-library
+	 * would read its rows into a string first).
+	 * 
+	 * @param writer
+	 *            the writer to write the value to
+	 * @param value
+	 *            the json value
+	 * @throws IOException
+	 *             if anything went wrong with the writer
+	 * @throws JSONException
+	 *             if a value could not be written
+	 */
+	private static void writeJson(Writer writer, Object value) throws IOException, JSONException {
+		// Streams the rows
+		if (value instanceof StreamedJSONArray) {
+			((StreamedJSONArray) value).write(writer);
+			return;
+		}
+
+		// Writes the members of an object
+		if (value instanceof JSONObject) {
+			JSONObject obj = (JSONObject) value;
+			writer.write('{');
+			boolean first = true;
+			for (String key : obj.keySet()) {
+				if (!first)
+					writer.write(',');
+				first = false;
+
+				JSONObject.quote(key, writer);
+				writer.write(':');
+				writeJson(writer, obj.opt(key));
+			}
+			writer.write('}');
+			return;
+		}
+
+		// Writes the elements of an array
+		if (value instanceof JSONArray) {
+			JSONArray arr = (JSONArray) value;
+			writer.write('[');
+			for (int i = 0; i < arr.length(); i++) {
+				if (i > 0)
+					writer.write(',');
+				writeJson(writer, arr.opt(i));
+			}
+			writer.write(']');
+			return;
+		}
+
+		// Writes any other value
+		writer.write(JSONObject.valueToString(value));
+	}
+
+	/**
+	 * Collects the bytes of a packet and sends them as encrypted chunks (Protocol
+	 * version 3). Every chunk starts with its flags.
+	 */
+	private class ChunkOutputStream extends OutputStream {
+
+		// The current chunk (Flags followed by the bytes)
+		private byte[] chunk = new byte[1 + chunkSize];
+
+		// How many bytes of the chunk are used (Including the flags)
+		private int size = 1;
+
+		@Override
+		public void write(int b) throws IOException {
+			// Sends the chunk if it is full
+			if (this.size == this.chunk.length)
+				this.sendChunk(true);
+
+			this.chunk[this.size++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				// Sends the chunk if it is full
+				if (this.size == this.chunk.length)
+					this.sendChunk(true);
+
+				// Appends as many bytes as fit into the chunk
+				int amount = Math.min(len, this.chunk.length - this.size);
+				System.arraycopy(b, off, this.chunk, this.size, amount);
+				this.size += amount;
+				off += amount;
+				len -= amount;
+			}
+		}
+
+		/**
+		 * Sends the last chunk of the packet
+		 */
+		public void finish() throws IOException {
+			this.sendChunk(false);
+		}
+
+		/**
+		 * Encrypts and sends the current chunk
+		 * 
+		 * @param more
+		 *            if another chunk of the packet follows
+		 */
+		private void sendChunk(boolean more) throws IOException {
+			// Sets the flags
+			this.chunk[0] = (byte) (more ? FLAG_MORE_CHUNKS : 0);
+
+			// Encrypts the chunk
+			Optional<byte[]> optEnc = encryptionManager.encryptGCM(this.chunk, 0, this.size, aesKey,
+					getGCMNonce(DIRECTION_SERVER, sendCounter++), nonceBytes);
+
+			// Checks if the encryption failed
+			if (!optEnc.isPresent())
+				throw new IOException("Failed to encrypt message.");
+
+			// Sends the chunk
+			socket.writeLargeFrame(optEnc.get());
+			this.size = 1;
+		}
+	}
+
 	/**
 	 * Closes the connection and all connected objects
 	 * 
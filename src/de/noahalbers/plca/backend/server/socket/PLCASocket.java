@@ -1,54 +1,90 @@
 package de.noahalbers.plca.backend.server.socket;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 
 import de.noahalbers.plca.backend.logger.Logger;
 import de.noahalbers.plca.backend.server.socket.exception.PLCAConnectionTimeoutException;
 
 public class PLCASocket {
 	
+	// Initial size of the read and write buffers
+	private static final int BUFFER_SIZE = 4096;
+	
 	// Reference to the logger
 	private Logger log;
 
-	// Gets the send timeout
-	private final long sendTimeout;
-	
-	// Last the that the remote client has send data (in ms)
-	private long lastSendTime;
-	
-	// Socket connection to the remote client
-	private Socket socket;
+	// Connection to the remote client (Raw socket or nio-channel)
+	private Closeable socket;
 	
 	// Reader and writer for the connection
 	private InputStream reader;
 	private OutputStream writer;
 	
+	// Bytes that got received but have not been read (Between position and limit). Reused for the whole connection
+	private ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+	
+	// Buffer to combine the frame-header and payload into a single write. Reused for the whole connection
+	private ByteBuffer writeBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+	
 	// Id of the connection
 	private long connectionId;
 	
+	// How many millis a read on the raw socket waits until it times out (Only used for raw sockets)
+	private long timeout;
+	
+	// How many bytes a read may take ahead into the read buffer
+	private int readAhead = 1;
+	
 	/**
 	 * @param id a random id used to identify the connection in the log files
 	 * @param socket the raw java socket
 	 * @param timeout how man millis to wait until the connection is counted timed out
 	 */
 	public PLCASocket(long id,Socket socket,long timeout) {
+		this(id,null,null,socket);
+		this.timeout=timeout;
+		
+		// Raw sockets receive as many bytes as are available to save system calls
+		this.readAhead=BUFFER_SIZE;
+		
+		// Gets the reader and writer
+		try {
+			// Lets blocking reads time out
+			socket.setSoTimeout(toSoTimeout(timeout));
+			
+			this.reader = socket.getInputStream();
+			this.writer = socket.getOutputStream();
+		} catch (IOException e) {}
+	}
+	
+	/**
+	 * @param id a random id used to identify the connection in the log files
+	 * @param reader the stream that receives the bytes from the remote client
+	 * @param writer the stream that sends the bytes to the remote client
+	 * @param connection the underlying connection that gets closed once the socket gets killed
+	 * 
+	 * The reader has to time out by itself by throwing a {@link SocketTimeoutException}.
+	 * Single bytes will not be read ahead as the stream's owner may still inspect the unread bytes.
+	 */
+	public PLCASocket(long id,InputStream reader,OutputStream writer,Closeable connection) {
 		// Creates the logger
 		this.log = new Logger("PLCA-Socket."+id);
 		this.connectionId=id;
 		
 		this.log.debug("Created PLCA-Socket");
 		
-		this.socket=socket;
-		this.sendTimeout = timeout;
+		this.socket=connection;
+		this.reader=reader;
+		this.writer=writer;
 		
-		// Gets the reader and writer
-		try {
-			this.reader = this.socket.getInputStream();
-			this.writer = this.socket.getOutputStream();
-		} catch (IOException e) {}
+		// Starts without any buffered bytes
+		this.readBuffer.limit(0);
 	}
 	
 	/**
@@ -71,10 +107,75 @@ public class PLCASocket {
 	 * @throws IOException if anything went wrong with the I/O
 	 */
 	public void readByte(byte[] toFill) throws IOException, PLCAConnectionTimeoutException {
-		// Iterates over all slots
-		for(int i=0;i<toFill.length;i++)
-			// Fill the slot
-			toFill[i] = this.readByte();
+		// Takes the already buffered bytes
+		int received = Math.min(this.readBuffer.remaining(), toFill.length);
+		this.readBuffer.get(toFill, 0, received);
+		
+		// Waits until all remaining slots got filled
+		while(received < toFill.length) {
+			// Receives as many bytes as are available directly into the array
+			int offset = received;
+			received += this.read(()->this.reader.read(toFill, offset, toFill.length-offset));
+		}
+	}
+	
+	/**
+	 * Waits for the next frame (Two byte length followed by the payload) and returns its payload
+	 * @throws PLCAConnectionTimeoutException if the connection timed out
+	 * @throws IOException if anything went wrong with the I/O
+	 */
+	public byte[] readFrame() throws IOException, PLCAConnectionTimeoutException {
+		// Gets the length of the payload (Reads exactly the header to not consume bytes of the next frame)
+		byte[] header = this.readXBytes(2);
+		int len = (header[0] & 0xff) | ((header[1] & 0xff) << 8);
+		
+		// Receives the payload
+		return this.readXBytes(len);
+	}
+	
+	/**
+	 * Waits for the next large frame (Varint length followed by the payload) and returns its payload
+	 * @param maxLength how many bytes the payload can have
+	 * @throws PLCAConnectionTimeoutException if the connection timed out
+	 * @throws IOException if anything went wrong with the I/O or the payload is too long
+	 */
+	public byte[] readLargeFrame(int maxLength) throws IOException, PLCAConnectionTimeoutException {
+		// Gets the length of the payload
+		int len = this.readVarInt();
+		
+		// Checks if the payload is too long
+		if(len > maxLength) {
+			this.killConnection();
+			throw new IOException("Frame is too large: "+len+" bytes");
+		}
+		
+		// Receives the payload
+		return this.readXBytes(len);
+	}
+	
+	/**
+	 * Reads an unsigned varint (Seven bits per byte, least significant first, the highest bit marks that another byte follows)
+	 * @throws PLCAConnectionTimeoutException if the connection timed out
+	 * @throws IOException if anything went wrong with the I/O or the varint is invalid
+	 */
+	public int readVarInt() throws IOException, PLCAConnectionTimeoutException {
+		int value = 0;
+		
+		// Reads up to five bytes
+		for(int i=0;i<5;i++) {
+			short b = this.readUByte();
+			value |= (b & 0x7f) << (i * 7);
+			
+			// Checks if this was the last byte
+			if((b & 0x80) == 0) {
+				if(value < 0)
+					break;
+				return value;
+			}
+		}
+		
+		this.killConnection();
+		throw new IOException("Invalid varint");
 	}
 	
 	/**
@@ -100,30 +201,87 @@ public class PLCASocket {
 	 * @throws PLCAConnectionTimeoutException
 	 */
 	public short readUByte() throws IOException,PLCAConnectionTimeoutException {
-		// Updates the timeout
-		this.lastSendTime = System.currentTimeMillis();
+		// Checks if all buffered bytes have been read
+		if(!this.readBuffer.hasRemaining())
+			this.fillReadBuffer();
 		
-		// Waits until the timeout has been reached
-		while(System.currentTimeMillis()-this.lastSendTime <= this.sendTimeout) {
-			try {
-				// Checks if a new byte got received
-				if(this.reader.available() > 0)
-					return (short) this.reader.read();
-				else
-					Thread.sleep(10);
-			} catch (IOException e) {
-				this.killConnection();
-				this.log.debug("PLCA-Socket I/O-error, killed socket");
-				throw e;
-			} catch(InterruptedException e) {};
-			
-		}
-		// Kills the connection
-		this.killConnection();
+		return (short) (this.readBuffer.get() & 0xff);
+	}
+	
+	/**
+	 * Waits until at least one byte got received without reading it. Uses the given timeout instead of the connection's timeout.
+	 * @param timeout how many millis to wait until the connection is counted timed out
+	 * @throws PLCAConnectionTimeoutException if the connection timed out
+	 * @throws IOException if anything went wrong with the I/O or the remote client closed the connection
+	 */
+	public void awaitData(long timeout) throws IOException,PLCAConnectionTimeoutException {
+		// Checks if bytes are already buffered or received (Does not consume them, so a pipelined request
+		// stays visible to the stream's owner)
+		if(this.readBuffer.hasRemaining() || this.reader.available() > 0)
+			return;
+
+		// Gets the raw socket (Streams handle their timeout by themself)
+		Socket raw = this.socket instanceof Socket ? (Socket) this.socket : null;
 		
-		this.log.debug("PLCA-Socket timed out, killed the connection");
+		// Uses the given timeout for the wait
+		if(raw != null)
+			raw.setSoTimeout(toSoTimeout(timeout));
 		
-		throw new PLCAConnectionTimeoutException();
+		try {
+			this.fillReadBuffer();
+		} finally {
+			// Restores the connection's timeout
+			if(raw != null && !raw.isClosed())
+				raw.setSoTimeout(toSoTimeout(this.timeout));
+		}
+	}
+	
+	/**
+	 * Waits for bytes and receives as many as are available into the empty read buffer
+	 * @throws PLCAConnectionTimeoutException if the connection timed out
+	 * @throws IOException if anything went wrong with the I/O
+	 */
+	private void fillReadBuffer() throws IOException,PLCAConnectionTimeoutException {
+		this.readBuffer.clear();
+		this.readBuffer.limit(this.read(()->this.reader.read(this.readBuffer.array(), 0, this.readAhead)));
+	}
+	
+	/**
+	 * Converts the timeout in millis to the value for {@link Socket#setSoTimeout(int)} (Zero would disable the timeout)
+	 */
+	private static int toSoTimeout(long timeout) {
+		return (int) Math.min(Integer.MAX_VALUE, Math.max(1, timeout));
+	}
+	
+	/**
+	 * Performs a blocking read on the reader and kills the connection if anything went wrong with the read
+	 * @param read the read that returns the byte or the amount of bytes (-1 if the connection got closed)
+	 * @return the value that got returned by the read
+	 * @throws IOException if anything went wrong with the I/O or the remote client closed the connection
+	 * @throws PLCAConnectionTimeoutException if the connection timed out
+	 */
+	private int read(BlockingRead read) throws IOException,PLCAConnectionTimeoutException {
+		try {
+			// Waits for the bytes
+			int result = read.read();
+			
+			// Checks if the remote client closed the connection
+			if(result < 0)
+				throw new IOException("Connection got closed by the remote client");
+			
+			return result;
+		} catch (SocketTimeoutException e) {
+			// Kills the connection
+			this.killConnection();
+			
+			this.log.debug("PLCA-Socket timed out, killed the connection");
+			
+			throw new PLCAConnectionTimeoutException();
+		} catch (IOException e) {
+			this.killConnection();
+			this.log.debug("PLCA-Socket I/O-error, killed socket");
+			throw e;
+		}
 	}
 	
 	/**
@@ -154,6 +312,68 @@ public class PLCASocket {
 		this.writer.write(data);
 	}
 	
+	/**
+	 * Sends the payload as a frame (Two byte length followed by the payload) and flushes it using a single write
+	 * @param payload the payload to send. Must not be longer than 2^16-1 bytes
+	 * @throws IOException if anything went wrong with the I/O
+	 */
+	public void writeFrame(byte[] payload) throws IOException {
+		// Combines the header and payload
+		this.prepareWriteBuffer(2 + payload.length)
+			.put((byte) payload.length)
+			.put((byte) (payload.length >> 8))
+			.put(payload);
+		
+		// Sends the frame
+		this.flushWriteBuffer();
+	}
+	
+	/**
+	 * Sends the payload as a large frame (Varint length followed by the payload) and flushes it using a single write
+	 * @param payload the payload to send
+	 * @throws IOException if anything went wrong with the I/O
+	 */
+	public void writeLargeFrame(byte[] payload) throws IOException {
+		ByteBuffer buf = this.prepareWriteBuffer(5 + payload.length);
+		
+		// Appends the length as varint
+		int len = payload.length;
+		while(len > 0x7f) {
+			buf.put((byte) ((len & 0x7f) | 0x80));
+			len >>>= 7;
+		}
+		buf.put((byte) len);
+		
+		// Appends the payload
+		buf.put(payload);
+		
+		// Sends the frame
+		this.flushWriteBuffer();
+	}
+	
+	/**
+	 * Clears the write buffer and ensures that it can hold the given amount of bytes
+	 * @param size how many bytes will be written
+	 * @return the write buffer
+	 */
+	private ByteBuffer prepareWriteBuffer(int size) {
+		// Ensures that the frame fits into the buffer
+		if(this.writeBuffer.capacity() < size)
+			this.writeBuffer = ByteBuffer.allocate(Math.max(size, this.writeBuffer.capacity() * 2));
+		
+		this.writeBuffer.clear();
+		return this.writeBuffer;
+	}
+	
+	/**
+	 * Sends all bytes that got put into the write buffer using a single write
+	 * @throws IOException if anything went wrong with the I/O
+	 */
+	private void flushWriteBuffer() throws IOException {
+		this.writer.write(this.writeBuffer.array(), 0, this.writeBuffer.position());
+		this.writer.flush();
+	}
+	
 	// Wrapper to flush to the socket
 	public void flush() throws IOException {
 		this.writer.flush();
@@ -176,4 +396,9 @@ public class PLCASocket {
 	public long getConnectionId() {
 		return this.connectionId;
 	}
+	
+	@FunctionalInterface
+	private interface BlockingRead {
+		public int read() throws IOException;
+	}
 }
@@ -0,0 +1,96 @@
+package de.noahalbers.plca.backend.server.socket;
+
+import java.security.PublicKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.AbstractMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONObject;
+
+import com.mysql.cj.exceptions.RSAException;
+
+import de.noahalbers.plca.backend.EncryptionManager;
+import de.noahalbers.plca.backend.database.entitys.AdminEntity;
+import de.noahalbers.plca.backend.util.Nullable;
+
+public class PublicKeyCache {
+
+	// Manager to generate the keys
+	private EncryptionManager encryptionManager = EncryptionManager.getShared();
+
+	// The key of the covid-login (Generated once it is first requested)
+	@Nullable
+	private volatile PublicKey appLoginKey;
+
+	// The spec from the config that the covid-login key gets generated from
+	private RSAPublicKeySpec appLoginSpec;
+
+	// Parsed keys of the admins (Id -> Raw json-key and the parsed key)
+	private Map<Integer, Entry<String, PublicKey>> adminKeys = new ConcurrentHashMap<>();
+
+	/**
+	 * @param appLoginSpec
+	 *            the rsa-public-key of the covid-login
+	 */
+	public PublicKeyCache(RSAPublicKeySpec appLoginSpec) {
+		this.appLoginSpec = appLoginSpec;
+	}
+
+	/**
+	 * @return the rsa-public-key of the covid-login
+	 * @throws RSAException
+	 *             if the key could not be generated
+	 */
+	public PublicKey getAppLoginKey() throws RSAException {
+		// Checks if the key has already been generated
+		PublicKey key = this.appLoginKey;
+		if (key != null)
+			return key;
+
+		synchronized (this) {
+			if (this.appLoginKey == null)
+				this.appLoginKey = this.encryptionManager.getPublicKeyFromSpec(this.appLoginSpec);
+			return this.appLoginKey;
+		}
+	}
+
+	/**
+	 * Gets the parsed rsa-public-key of the admin. Parses it only if the admin is
+	 * unknown or the key has changed.
+	 *
+	 * @param admin
+	 *            the admin with the key in json-format
+	 * @return the rsa-public-key of the admin
+	 * @throws RSAException
+	 *             if the key could not be parsed or generated
+	 */
+	public PublicKey getAdminKey(AdminEntity admin) throws RSAException {
+		// Gets the cached key
+		Entry<String, PublicKey> cached = this.adminKeys.get(admin.id);
+
+		// Checks if the key is cached and has not changed
+		if (cached != null && cached.getKey().equals(admin.publicKey))
+			return cached.getValue();
+
+		// Parses the key
+		PublicKey key = this.encryptionManager
+				.getPublicKeyFromSpec(EncryptionManager.getPublicKeySpecFromJson(new JSONObject(admin.publicKey)));
+
+		// Stores the key
+		this.adminKeys.put(admin.id, new AbstractMap.SimpleEntry<>(admin.publicKey, key));
+
+		return key;
+	}
+
+	/**
+	 * Removes the cached key of the admin (Eg. if the admin got updated)
+	 *
+	 * @param adminId
+	 *            the id of the admin
+	 */
+	public void invalidateAdmin(int adminId) {
+		this.adminKeys.remove(adminId);
+	}
+}
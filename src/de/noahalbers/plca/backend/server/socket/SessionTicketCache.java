@@ -0,0 +1,155 @@
+package de.noahalbers.plca.backend.server.socket;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import de.noahalbers.plca.backend.database.entitys.AdminEntity;
+import de.noahalbers.plca.backend.util.Nullable;
+
+public class SessionTicketCache {
+
+	// How many bytes a ticket has
+	public static final int TICKET_LENGTH = 32;
+
+	// Generator for the tickets
+	private SecureRandom random = new SecureRandom();
+
+	// How many millis a ticket can be used after it got issued
+	private long lifetime;
+
+	// How many tickets can be stored until the least recently used get removed
+	private int maxSize;
+
+	// All issued tickets (Base64 of the ticket) in the order they got used
+	private Map<String, SessionTicket> tickets;
+
+	/**
+	 * @param lifetime
+	 *            how many millis a ticket can be used after it got issued
+	 * @param maxSize
+	 *            how many tickets can be stored until the least recently used
+	 *            get removed
+	 */
+	@SuppressWarnings("serial")
+	public SessionTicketCache(long lifetime, int maxSize) {
+		this.lifetime = lifetime;
+		this.maxSize = maxSize;
+		this.tickets = new LinkedHashMap<String, SessionTicket>(16, .75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, SessionTicket> eldest) {
+				return this.size() > SessionTicketCache.this.maxSize;
+			}
+		};
+	}
+
+	/**
+	 * @return if tickets can be issued
+	 */
+	public boolean isEnabled() {
+		return this.lifetime > 0 && this.maxSize > 0;
+	}
+
+	/**
+	 * @return how many millis a ticket can be used after it got issued
+	 */
+	public long getLifetime() {
+		return this.lifetime;
+	}
+
+	/**
+	 * Issues a new ticket that can be used to resume a connection
+	 *
+	 * @param secret
+	 *            the key material that the resumed connection derives its key from
+	 * @param admin
+	 *            the admin that is connected; null if the covid-login is connected
+	 * @return the ticket that has to be passed to the client
+	 */
+	public synchronized byte[] issue(byte[] secret, @Nullable AdminEntity admin) {
+		// Generates the ticket
+		byte[] ticket = new byte[TICKET_LENGTH];
+		this.random.nextBytes(ticket);
+
+		// Stores the ticket
+		this.tickets.put(Base64.getEncoder().encodeToString(ticket),
+				new SessionTicket(secret.clone(), admin, System.currentTimeMillis() + this.lifetime));
+
+		return ticket;
+	}
+
+	/**
+	 * Gets the stored information of the ticket
+	 *
+	 * @param ticket
+	 *            the ticket that got send by the client
+	 * @return empty if the ticket is unknown or expired; otherwise the stored
+	 *         information
+	 */
+	public synchronized Optional<SessionTicket> get(byte[] ticket) {
+		// Gets the key of the ticket
+		String key = Base64.getEncoder().encodeToString(ticket);
+
+		// Gets the stored ticket
+		SessionTicket stored = this.tickets.get(key);
+
+		// Checks if the ticket is unknown
+		if (stored == null)
+			return Optional.empty();
+
+		// Checks if the ticket has expired
+		if (stored.expires < System.currentTimeMillis()) {
+			this.tickets.remove(key);
+			return Optional.empty();
+		}
+
+		return Optional.of(stored);
+	}
+
+	/**
+	 * Removes the ticket
+	 *
+	 * @param ticket
+	 *            the ticket that got issued
+	 */
+	public synchronized void revoke(byte[] ticket) {
+		this.tickets.remove(Base64.getEncoder().encodeToString(ticket));
+	}
+
+	/**
+	 * Removes all tickets of the admin (Eg. if the admin got updated or frozen)
+	 *
+	 * @param adminId
+	 *            the id of the admin
+	 */
+	public synchronized void invalidateAdmin(int adminId) {
+		Iterator<SessionTicket> it = this.tickets.values().iterator();
+		while (it.hasNext()) {
+			SessionTicket ticket = it.next();
+			if (ticket.admin != null && ticket.admin.id == adminId)
+				it.remove();
+		}
+	}
+
+	public static class SessionTicket {
+
+		// The key material that the resumed connection derives its key from
+		public final byte[] secret;
+
+		// The admin that was connected; null if the covid-login was connected
+		@Nullable
+		public final AdminEntity admin;
+
+		// Time at which the ticket expires (Millis)
+		public final long expires;
+
+		public SessionTicket(byte[] secret, @Nullable AdminEntity admin, long expires) {
+			this.secret = secret;
+			this.admin = admin;
+			this.expires = expires;
+		}
+	}
+}
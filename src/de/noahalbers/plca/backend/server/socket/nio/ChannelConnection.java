@@ -0,0 +1,354 @@
+package de.noahalbers.plca.backend.server.socket.nio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BooleanSupplier;
+
+import de.noahalbers.plca.backend.logger.Logger;
+import de.noahalbers.plca.backend.server.socket.PLCAConnection;
+import de.noahalbers.plca.backend.server.socket.PLCASocket;
+import de.noahalbers.plca.backend.util.Nullable;
+import de.noahalbers.plca.backend.util.Timer;
+
+public class ChannelConnection {
+
+	// All states that the connection can be in
+	private static final int
+			STATE_HANDSHAKE = 0,	// Waits for the client's handshake
+			STATE_REQUEST = 1,		// Waits for the next request-packet
+			STATE_BUSY = 2,			// A worker is currently processing the connection
+			STATE_CLOSED = 3;		// The connection got closed
+
+	// Bytes of a frame's length (Varint or two bytes) that can come on top of the packet
+	private static final int FRAME_HEADER = 5;
+
+	// Logger
+	private Logger log;
+
+	// The channel to the remote client
+	private SocketChannel channel;
+
+	// The loop that handles the channel's events
+	private SelectorLoop loop;
+
+	// The key of the channel on the loop's selector. Will only be available after
+	// the registration.
+	@Nullable
+	private SelectionKey key;
+
+	// Workers that execute the handshake and the request-handlers
+	private Executor workers;
+
+	// Bytes that got received and have not been processed
+	private ChannelInputStream input;
+
+	// Bytes that are waiting to be send
+	private Queue<ByteBuffer> pendingWrites = new ConcurrentLinkedQueue<>();
+
+	// The connection that performs the handshake and request
+	private PLCAConnection connection;
+
+	// Current state of the connection. Will only be accessed by the loop
+	private int state = STATE_HANDSHAKE;
+
+	// If the connection shall be closed once all pending bytes have been send
+	private boolean closeRequested;
+
+	// Timer since the last received bytes (Used for the timeout)
+	private Timer idleTimer = new Timer();
+
+	// How many millis to wait until the connection is counted timed out
+	private long timeout;
+
+	/**
+	 * @param connectionId
+	 *            a random id used to identify the connection in the log files
+	 * @param channel
+	 *            the non-blocking channel to the remote client
+	 * @param loop
+	 *            the loop on which the channel will be registered
+	 * @param workers
+	 *            the workers that shall execute the handshake and request
+	 * @param timeout
+	 *            how many millis to wait until the connection is counted timed out
+	 * @param maxPacketSize
+	 *            how many bytes a packet of the client can have (Limits how many
+	 *            received bytes get buffered until the connection stops receiving)
+	 */
+	public ChannelConnection(long connectionId, SocketChannel channel, SelectorLoop loop, Executor workers,
+			long timeout, int maxPacketSize) {
+		this.log = new Logger("ChannelConnection." + connectionId);
+		this.channel = channel;
+		this.loop = loop;
+		this.workers = workers;
+		this.timeout = timeout;
+
+		// Buffers at least one complete frame (So that the first frame of a request can always be awaited)
+		this.input = new ChannelInputStream(timeout, Math.max(maxPacketSize, 0xffff) + FRAME_HEADER,
+				() -> this.loop.execute(this::resumeReading));
+
+		// Creates the connection that uses the channel
+		this.connection = new PLCAConnection(connectionId,
+				new PLCASocket(connectionId, this.input, new ChannelOutputStream(), this::requestClose),
+				x -> {
+				});
+	}
+
+	/**
+	 * Executes on the loop once the channel got registered
+	 */
+	void onRegistered(SelectionKey key) {
+		this.key = key;
+		this.idleTimer.reset();
+	}
+
+	/**
+	 * Executes on the loop when the channel has bytes to read
+	 *
+	 * @param buffer
+	 *            the loop's buffer that can be used to read
+	 * @throws IOException
+	 *             if anything went wrong with the I/O
+	 */
+	void onReadable(ByteBuffer buffer) throws IOException {
+		// Reads all available bytes (Until the buffer is full)
+		int read = 0;
+		while (!this.input.isFull() && (read = this.channel.read(buffer)) > 0) {
+			buffer.flip();
+			this.input.feed(buffer);
+			buffer.clear();
+		}
+
+		this.idleTimer.reset();
+
+		// Checks if the client closed the connection
+		if (read < 0) {
+			this.input.markEndOfStream();
+
+			// Checks if no worker uses the connection that could still send a response
+			if (this.state != STATE_BUSY) {
+				this.close();
+				return;
+			}
+
+			// Stops listening for bytes
+			this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_READ);
+		}
+		// Stops receiving until the worker read the buffered bytes (A client can not
+		// pipeline more bytes than get processed)
+		else if (this.input.pauseIfFull())
+			this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_READ);
+
+		this.process();
+	}
+
+	/**
+	 * Executes on the loop once a worker made space in the full buffer
+	 */
+	private void resumeReading() {
+		if (this.state != STATE_CLOSED && this.key.isValid())
+			this.key.interestOps(this.key.interestOps() | SelectionKey.OP_READ);
+	}
+
+	/**
+	 * Executes on the loop when the channel can send bytes
+	 *
+	 * @throws IOException
+	 *             if anything went wrong with the I/O
+	 */
+	void onWritable() throws IOException {
+		// Sends as many pending bytes as possible
+		ByteBuffer buf;
+		while ((buf = this.pendingWrites.peek()) != null) {
+			this.channel.write(buf);
+
+			// Checks if the channel is full
+			if (buf.hasRemaining())
+				return;
+
+			this.pendingWrites.poll();
+		}
+
+		// Stops waiting for the channel to be writable
+		this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_WRITE);
+
+		// Checks if the connection only waited for the bytes to be send
+		if (this.closeRequested)
+			this.close();
+	}
+
+	/**
+	 * Executes on the loop to check if the connection has timed out while waiting
+	 * for bytes
+	 */
+	void checkTimeout() {
+		// Workers handle their own timeouts
+		if (this.state == STATE_BUSY || this.state == STATE_CLOSED)
+			return;
+
+		// Gets the timeout (Sessions wait longer for their next request)
+		long limit = this.state == STATE_REQUEST ? this.connection.getRequestTimeout() : this.timeout;
+
+		if (this.idleTimer.hasReached(limit)) {
+			this.log.debug("Connection timed out, closing it");
+			this.close();
+		}
+	}
+
+	/**
+	 * Checks if the received bytes are enough to continue with the next step and
+	 * passes that step to the workers
+	 */
+	private void process() {
+		// How many bytes are required for the next step
+		int length;
+
+		switch (this.state) {
+		case STATE_HANDSHAKE:
+			// Checks if the client has send the handshake
+			length = PLCAConnection.getHandshakeLength(this.input.available(), this.input::peek);
+			if (length > 0 && this.input.available() >= length)
+				this.dispatch(this.connection::doHandshake, STATE_REQUEST);
+			break;
+		case STATE_REQUEST:
+			// Checks if the first frame of the request-packet got received completely
+			length = this.connection.getFrameLength(this.input.available(), this.input::peek);
+			if (length > 0 && this.input.available() >= length)
+				this.dispatch(this.connection::handleRequest, STATE_REQUEST);
+			break;
+		}
+	}
+
+	/**
+	 * Passes a step of the connection to the workers
+	 *
+	 * @param step
+	 *            the step; returns if the connection can continue
+	 * @param nextState
+	 *            the state once the step has finished successfully
+	 */
+	private void dispatch(BooleanSupplier step, int nextState) {
+		this.state = STATE_BUSY;
+
+		try {
+			this.workers.execute(() -> {
+				// Executes the step
+				boolean success = step.getAsBoolean();
+
+				// Passes the result back to the loop
+				this.loop.execute(() -> this.onStepFinished(success, nextState));
+			});
+		} catch (RejectedExecutionException e) {
+			this.log.warn("All workers are busy, closing connection");
+			this.close();
+		}
+	}
+
+	/**
+	 * Executes on the loop once a worker has finished a step
+	 */
+	private void onStepFinished(boolean success, int nextState) {
+		// Checks if the connection got closed in the meantime or shall be closed
+		if (this.state == STATE_CLOSED || this.closeRequested)
+			return;
+
+		// Checks if the step failed
+		if (!success) {
+			this.close();
+			return;
+		}
+
+		// Continues with the next step
+		this.state = nextState;
+		this.idleTimer.reset();
+		this.process();
+	}
+
+	/**
+	 * Queues bytes to be send by the loop
+	 */
+	private void queueWrite(ByteBuffer data) {
+		this.pendingWrites.add(data);
+
+		this.loop.execute(() -> {
+			// Starts waiting for the channel to be writable
+			if (this.state != STATE_CLOSED)
+				this.key.interestOps(this.key.interestOps() | SelectionKey.OP_WRITE);
+		});
+	}
+
+	/**
+	 * Requests the connection to be closed once all pending bytes have been send
+	 */
+	private void requestClose() {
+		this.loop.execute(() -> {
+			this.closeRequested = true;
+
+			// Checks if nothing has to be send anymore
+			if (this.pendingWrites.isEmpty())
+				this.close();
+		});
+	}
+
+	/**
+	 * Closes the channel immediately
+	 */
+	void close() {
+		if (this.state == STATE_CLOSED)
+			return;
+		this.state = STATE_CLOSED;
+
+		// Wakes up a worker that waits for bytes
+		this.input.markEndOfStream();
+
+		// Removes the channel from the selector
+		if (this.key != null)
+			this.key.cancel();
+
+		try {
+			this.channel.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Collects all bytes until they get flushed and then queues them to be send by
+	 * the loop
+	 */
+	private class ChannelOutputStream extends OutputStream {
+
+		// The bytes that have not been flushed
+		private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+		@Override
+		public void write(int b) {
+			this.pending.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			this.pending.write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (this.pending.size() == 0)
+				return;
+
+			// Checks if the connection is already closed
+			if (!channel.isOpen())
+				throw new IOException("Channel is closed");
+
+			queueWrite(ByteBuffer.wrap(this.pending.toByteArray()));
+			this.pending.reset();
+		}
+	}
+}
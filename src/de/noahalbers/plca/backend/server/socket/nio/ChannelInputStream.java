@@ -0,0 +1,197 @@
+package de.noahalbers.plca.backend.server.socket.nio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+public class ChannelInputStream extends InputStream {
+
+	// Bytes that got received by the selector but have not been read yet
+	private byte[] buffer = new byte[256];
+
+	// Positions inside the buffer to read from and to write to
+	private int readPos, writePos;
+
+	// If the remote client has closed the connection (or it got killed)
+	private boolean endOfStream;
+
+	// How many millis a read waits for new bytes until it times out
+	private final long timeout;
+
+	// How many bytes can be buffered until the selector has to stop receiving
+	private final int limit;
+
+	// Executes once a reader made space again after the buffer got full
+	private final Runnable onSpace;
+
+	// If the selector stopped receiving because the buffer is full
+	private boolean paused;
+
+	/**
+	 * @param timeout
+	 *            how many millis a read waits for new bytes until it times out
+	 * @param limit
+	 *            how many bytes can be buffered until the selector has to stop
+	 *            receiving
+	 * @param onSpace
+	 *            executes (On the reading thread) once a reader made space again
+	 *            after the buffer got full
+	 */
+	public ChannelInputStream(long timeout, int limit, Runnable onSpace) {
+		this.timeout = timeout;
+		this.limit = limit;
+		this.onSpace = onSpace;
+	}
+
+	/**
+	 * Appends the bytes that got received by the selector. Wakes up a reader that
+	 * waits for those bytes.
+	 *
+	 * @param data
+	 *            the received bytes (From position to limit)
+	 */
+	public synchronized void feed(ByteBuffer data) {
+		// Gets the amount of received and still buffered bytes
+		int amount = data.remaining();
+		int buffered = this.writePos - this.readPos;
+
+		// Checks if the bytes do not fit behind the buffered bytes
+		if (this.writePos + amount > this.buffer.length) {
+			// Gets the array to move the buffered bytes to (Grows if required)
+			byte[] target = buffered + amount > this.buffer.length
+					? new byte[Math.max(this.buffer.length * 2, buffered + amount)]
+					: this.buffer;
+
+			// Moves the buffered bytes to the start
+			System.arraycopy(this.buffer, this.readPos, target, 0, buffered);
+			this.buffer = target;
+			this.readPos = 0;
+			this.writePos = buffered;
+		}
+
+		// Appends the bytes
+		data.get(this.buffer, this.writePos, amount);
+		this.writePos += amount;
+
+		// Wakes up waiting readers
+		this.notifyAll();
+	}
+
+	/**
+	 * @return if the buffer is full and the selector shall stop receiving
+	 */
+	public synchronized boolean isFull() {
+		return this.writePos - this.readPos >= this.limit;
+	}
+
+	/**
+	 * Marks the buffer as paused if it is full. Once a reader made space again,
+	 * the space-callback gets executed.
+	 *
+	 * @return if the buffer is full and the selector has to stop receiving
+	 */
+	public synchronized boolean pauseIfFull() {
+		return this.paused = this.isFull();
+	}
+
+	/**
+	 * Marks that no more bytes will be received. Wakes up a reader that waits for
+	 * bytes.
+	 */
+	public synchronized void markEndOfStream() {
+		this.endOfStream = true;
+		this.notifyAll();
+	}
+
+	/**
+	 * Returns the unsigned byte at the given offset without reading it
+	 *
+	 * @param offset
+	 *            the offset from the next byte that would be read
+	 * @throws IndexOutOfBoundsException
+	 *             if the byte has not been received yet
+	 */
+	public synchronized int peek(int offset) {
+		if (offset < 0 || offset >= this.writePos - this.readPos)
+			throw new IndexOutOfBoundsException();
+		return this.buffer[this.readPos + offset] & 0xff;
+	}
+
+	@Override
+	public synchronized int available() {
+		return this.writePos - this.readPos;
+	}
+
+	@Override
+	public synchronized int read() throws IOException {
+		// Waits for the next byte
+		if (!this.awaitData())
+			return -1;
+
+		int b = this.buffer[this.readPos++] & 0xff;
+		this.checkSpace();
+		return b;
+	}
+
+	@Override
+	public synchronized int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+
+		// Waits for the next bytes
+		if (!this.awaitData())
+			return -1;
+
+		// Copies as many bytes as are buffered
+		int amount = Math.min(len, this.writePos - this.readPos);
+		System.arraycopy(this.buffer, this.readPos, b, off, amount);
+		this.readPos += amount;
+		this.checkSpace();
+
+		return amount;
+	}
+
+	/**
+	 * Lets the selector receive again if it got paused and a read made space
+	 */
+	private void checkSpace() {
+		if (this.paused && !this.isFull()) {
+			this.paused = false;
+			this.onSpace.run();
+		}
+	}
+
+	/**
+	 * Waits until at least one byte is buffered
+	 *
+	 * @return false if the end of the stream has been reached; otherwise true
+	 * @throws SocketTimeoutException
+	 *             if no byte got received in time
+	 * @throws InterruptedIOException
+	 *             if the waiting thread got interrupted
+	 */
+	private boolean awaitData() throws InterruptedIOException {
+		// Time at which the read times out
+		long deadline = System.currentTimeMillis() + this.timeout;
+
+		// Waits until a byte got received
+		while (this.readPos == this.writePos && !this.endOfStream) {
+			// Gets the remaining time
+			long left = deadline - System.currentTimeMillis();
+
+			if (left <= 0)
+				throw new SocketTimeoutException();
+
+			try {
+				this.wait(left);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+
+		return this.readPos != this.writePos;
+	}
+}
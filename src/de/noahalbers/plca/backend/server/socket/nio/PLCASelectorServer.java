@@ -0,0 +1,120 @@
+package de.noahalbers.plca.backend.server.socket.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.noahalbers.plca.backend.PLCA;
+import de.noahalbers.plca.backend.config.Config;
+import de.noahalbers.plca.backend.logger.Logger;
+
+public class PLCASelectorServer {
+
+	// Logger
+	private Logger log = new Logger("PLCA-SelectorServer");
+
+	// Server listener
+	private ServerSocketChannel listener;
+
+	// Loops that handle the events of the connections
+	private SelectorLoop[] loops;
+
+	// Bounded pool that executes the handshakes and request-handlers
+	private ThreadPoolExecutor workers;
+
+	// Generator for the connection id
+	private Random random = new Random();
+
+	// Index of the loop that gets the next connection
+	private int nextLoop;
+
+	// How many millis to wait until a connection is counted timed out
+	private long timeout;
+
+	// How many bytes a packet of a client can have
+	private int maxPacketSize;
+
+	/**
+	 * @param port
+	 *            the port to listen on
+	 * @throws IOException
+	 *             if the listener or a selector could not be opened
+	 */
+	public PLCASelectorServer(int port) throws IOException {
+		// Reference to the config
+		Config cfg = PLCA.getInstance().getConfig();
+
+		this.timeout = cfg.getUnsafe("connection_timeout");
+		this.maxPacketSize = cfg.getUnsafe("max_packet_size");
+
+		// Opens the listener
+		this.listener = ServerSocketChannel.open();
+		this.listener.bind(new InetSocketAddress(port));
+
+		// Creates the loops
+		this.loops = new SelectorLoop[Math.max(1, cfg.<Integer>getUnsafe("nio_selector_threads"))];
+		for (int i = 0; i < this.loops.length; i++)
+			this.loops[i] = new SelectorLoop(i);
+
+		// Creates the workers
+		int workerAmount = Math.max(1, cfg.<Integer>getUnsafe("nio_worker_threads"));
+		AtomicInteger workerId = new AtomicInteger();
+		this.workers = new ThreadPoolExecutor(workerAmount, workerAmount, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(Math.max(1, cfg.<Integer>getUnsafe("nio_worker_queue"))),
+				r -> new Thread(r, "PLCA-Worker." + workerId.getAndIncrement()));
+	}
+
+	/**
+	 * Starts the loops and waits for connections. Blocks until the server gets
+	 * closed.
+	 */
+	public void run() {
+		this.log.debug("Starting " + this.loops.length + " selector loops");
+
+		// Starts the loops
+		for (SelectorLoop loop : this.loops)
+			loop.start();
+
+		// Waits for connections
+		while (this.listener.isOpen()) {
+			try {
+				// Waits for the next connection
+				SocketChannel channel = this.listener.accept();
+				channel.configureBlocking(false);
+
+				// Gets the next loop
+				SelectorLoop loop = this.loops[this.nextLoop];
+				this.nextLoop = (this.nextLoop + 1) % this.loops.length;
+
+				// Registers the connection
+				loop.register(channel,
+						new ChannelConnection(this.random.nextLong(), channel, loop, this.workers, this.timeout,
+								this.maxPacketSize));
+			} catch (Exception e) {
+				if (this.listener.isOpen())
+					this.log.error("Error with a connection").critical(e);
+			}
+		}
+	}
+
+	/**
+	 * Stops the server, all loops and the workers
+	 */
+	public void close() {
+		try {
+			this.listener.close();
+		} catch (IOException e) {
+		}
+
+		for (SelectorLoop loop : this.loops)
+			loop.interrupt();
+
+		this.workers.shutdownNow();
+	}
+}
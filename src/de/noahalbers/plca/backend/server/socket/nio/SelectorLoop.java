@@ -0,0 +1,134 @@
+package de.noahalbers.plca.backend.server.socket.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import de.noahalbers.plca.backend.logger.Logger;
+import de.noahalbers.plca.backend.util.Timer;
+
+public class SelectorLoop extends Thread {
+
+	// How many millis to wait between the checks for timed out connections
+	private static final long TIMEOUT_CHECK_DELAY = 500;
+
+	// Logger
+	private Logger log;
+
+	// Selector that waits for the events of all registered channels
+	private Selector selector;
+
+	// Tasks that have to be executed on the loop (Passed from other threads)
+	private Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+	// Buffer that is used to read from the channels
+	private ByteBuffer readBuffer = ByteBuffer.allocateDirect(8192);
+
+	// Timer for the timeout-checks
+	private Timer timeoutTimer = new Timer();
+
+	/**
+	 * @param id
+	 *            the id of the loop (Used for the log files)
+	 * @throws IOException
+	 *             if the selector could not be opened
+	 */
+	public SelectorLoop(int id) throws IOException {
+		super("PLCA-Selector." + id);
+		this.log = new Logger("SelectorLoop." + id);
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Registers the channel on the loop to handle its events
+	 *
+	 * @param channel
+	 *            the non-blocking channel
+	 * @param connection
+	 *            the connection that handles the channel's events
+	 */
+	public void register(SocketChannel channel, ChannelConnection connection) {
+		this.execute(() -> {
+			try {
+				connection.onRegistered(channel.register(this.selector, SelectionKey.OP_READ, connection));
+			} catch (ClosedChannelException e) {
+				connection.close();
+			}
+		});
+	}
+
+	/**
+	 * Executes the task on the loop
+	 */
+	public void execute(Runnable task) {
+		this.tasks.add(task);
+		this.selector.wakeup();
+	}
+
+	@Override
+	public void interrupt() {
+		super.interrupt();
+		this.selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		this.log.debug("Started selector loop");
+
+		while (!this.isInterrupted()) {
+			try {
+				// Waits for events
+				this.selector.select(TIMEOUT_CHECK_DELAY);
+			} catch (IOException e) {
+				this.log.error("Failed to select").critical(e);
+				continue;
+			}
+
+			// Executes all passed tasks
+			Runnable task;
+			while ((task = this.tasks.poll()) != null)
+				task.run();
+
+			// Handles all events
+			Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+
+				ChannelConnection con = (ChannelConnection) key.attachment();
+
+				try {
+					if (key.isValid() && key.isReadable())
+						con.onReadable(this.readBuffer);
+					if (key.isValid() && key.isWritable())
+						con.onWritable();
+				} catch (IOException | CancelledKeyException e) {
+					this.log.debug("I/O-error on channel, closing it").critical(e);
+					this.readBuffer.clear();
+					con.close();
+				}
+			}
+
+			// Closes timed out connections
+			if (this.timeoutTimer.hasReachedIfReset(TIMEOUT_CHECK_DELAY))
+				for (SelectionKey key : this.selector.keys())
+					((ChannelConnection) key.attachment()).checkTimeout();
+		}
+
+		// Closes all channels
+		for (SelectionKey key : this.selector.keys())
+			((ChannelConnection) key.attachment()).close();
+
+		try {
+			this.selector.close();
+		} catch (IOException e) {
+		}
+	}
+}
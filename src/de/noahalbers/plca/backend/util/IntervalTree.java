@@ -0,0 +1,110 @@
+package de.noahalbers.plca.backend.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * Immutable interval tree over closed intervals. The intervals are sorted by
+ * their start and stored as an implicit balanced tree (The middle of every
+ * range is the node) where every node knows the highest end of its subtree.
+ * Finding all k intervals that overlap a range takes O(k log n).
+ */
+public class IntervalTree<T> {
+
+	// The intervals sorted by their start
+	private List<T> values;
+	private long[] starts, ends;
+
+	// Highest end within the subtree of every node
+	private long[] maxEnds;
+
+	/**
+	 * @param intervals
+	 *            the intervals of the tree
+	 * @param start
+	 *            gets the start of an interval
+	 * @param end
+	 *            gets the end of an interval (Inclusive)
+	 */
+	public IntervalTree(Collection<T> intervals, ToLongFunction<T> start, ToLongFunction<T> end) {
+		// Sorts the intervals by their start
+		this.values = new ArrayList<>(intervals);
+		this.values.sort(Comparator.comparingLong(start));
+
+		// Copies the bounds
+		int size = this.values.size();
+		this.starts = new long[size];
+		this.ends = new long[size];
+		this.maxEnds = new long[size];
+		for (int i = 0; i < size; i++) {
+			this.starts[i] = start.applyAsLong(this.values.get(i));
+			this.ends[i] = end.applyAsLong(this.values.get(i));
+		}
+
+		this.build(0, size - 1);
+	}
+
+	/**
+	 * Calculates the highest end of every node within the range
+	 *
+	 * @return the highest end of the range
+	 */
+	private long build(int low, int high) {
+		if (low > high)
+			return Long.MIN_VALUE;
+
+		int mid = (low + high) >>> 1;
+		return this.maxEnds[mid] = Math.max(this.ends[mid], Math.max(this.build(low, mid - 1), this.build(mid + 1, high)));
+	}
+
+	/**
+	 * Passes every interval that overlaps the range (start &lt;= to and end &gt;=
+	 * from) to the consumer. The intervals are passed in the order of their start.
+	 *
+	 * @param from
+	 *            the start of the range
+	 * @param to
+	 *            the end of the range (Inclusive)
+	 * @param consumer
+	 *            receives the overlapping intervals
+	 */
+	public void query(long from, long to, Consumer<T> consumer) {
+		this.query(0, this.values.size() - 1, from, to, consumer);
+	}
+
+	/**
+	 * Searches the overlapping intervals within the range of nodes
+	 */
+	private void query(int low, int high, long from, long to, Consumer<T> consumer) {
+		if (low > high)
+			return;
+
+		int mid = (low + high) >>> 1;
+
+		// Checks if no interval of the subtree ends after the range starts
+		if (this.maxEnds[mid] < from)
+			return;
+
+		this.query(low, mid - 1, from, to, consumer);
+
+		// Checks if the node and all following intervals start after the range
+		if (this.starts[mid] > to)
+			return;
+
+		if (this.ends[mid] >= from)
+			consumer.accept(this.values.get(mid));
+
+		this.query(mid + 1, high, from, to, consumer);
+	}
+
+	/**
+	 * @return how many intervals the tree holds
+	 */
+	public int size() {
+		return this.values.size();
+	}
+}